@@ -5,39 +5,103 @@
  * See the file LICENSE.txt for details.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.URI;
+import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 public class JarMain implements Runnable {
 
     static final String MAIN = '/' + JarMain.class.getName().replace('.', '/') + ".class";
+    static final String LAUNCHER_PROPERTIES = "/META-INF/warbler.properties";
 
     protected final String[] args;
     protected final String archive;
     private final String path;
 
     protected File extractRoot;
+    private FileChannel extractRootLock; // held while a (temporary) extractRoot is in use
+
+    private File extractCacheDir;
+    private FileChannel extractCacheLock; // (shared) lock held while the cache directory is in use
+    private Properties extractIndex; // non-null when extracting into the cache
+    private volatile boolean extractIndexChanged;
 
     protected URLClassLoader classLoader;
 
+    private NestedJarClassLoader nestedClassLoader;
+
+    private JarFile archiveFile;
+    private RandomAccessFile archiveData; // for STORED entry transfers
+    private Map<String, ZipRecord> archiveRecords;
+
+    private final StartupProfile profile; // non-null with warbler.profile
+
+    private Properties launcherProperties;
+    private volatile Process relaunched; // child JVM (when relaunching)
+
     JarMain(String[] args) {
+        this(args, true);
+    }
+
+    JarMain(String[] args, boolean shutdownHook) {
+        this.profile = StartupProfile.create();
         this.args = args;
         URL mainClass = getClass().getResource(MAIN);
         try {
@@ -48,34 +112,380 @@ public class JarMain implements Runnable {
         }
         archive = this.path.replace("!" + MAIN, "").replace("file:", "");
 
-        Runtime.getRuntime().addShutdownHook(new Thread(this));
+        if ( shutdownHook ) Runtime.getRuntime().addShutdownHook(new Thread(this));
     }
 
     protected URL[] extractArchive() throws Exception {
-        final JarFile jarFile = new JarFile(archive);
+        final JarFile jarFile = openArchive();
         try {
-            Map<String, JarEntry> jarNames = new HashMap<String, JarEntry>();
+            Map<String, JarEntry> jarNames = new LinkedHashMap<String, JarEntry>();
+            List<String> nestedJars = new ArrayList<String>();
+            final boolean nested = isNestedJars();
             for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
                 JarEntry entry = e.nextElement();
                 String extractPath = getExtractEntryPath(entry);
-                if ( extractPath != null ) jarNames.put(extractPath, entry);
+                if ( extractPath == null ) continue;
+                // only STORED jars can be read in place, others get extracted
+                if ( nested && isClassPathEntry(extractPath) && entry.getMethod() == ZipEntry.STORED ) {
+                    nestedJars.add(entry.getName());
+                }
+                else {
+                    jarNames.put(extractPath, entry);
+                }
+            }
+
+            if ( ! nestedJars.isEmpty() ) {
+                debug("loading nested jars: " + nestedJars);
+                nestedClassLoader = new NestedJarClassLoader(new File(archive), nestedJars, ClassLoader.getSystemClassLoader());
+            }
+            // nothing gets written to disk when all jars are loaded in place
+            if ( nestedJars.isEmpty() || ! jarNames.isEmpty() ) extractRoot = createExtractRoot();
+
+            final URL[] urls;
+            final int threads = getExtractThreads(jarNames.size());
+            if ( threads > 1 ) {
+                urls = extractEntries(jarNames, threads);
+            }
+            else {
+                final List<URL> urlList = new ArrayList<URL>(jarNames.size());
+                for (Map.Entry<String, JarEntry> e : jarNames.entrySet()) {
+                    URL entryURL = extractEntry(e.getValue(), e.getKey());
+                    if (entryURL != null) urlList.add( entryURL );
+                }
+                urls = urlList.toArray(new URL[urlList.size()]);
+            }
+            saveExtractIndex();
+            return urls;
+        }
+        finally {
+            closeArchive();
+        }
+    }
+
+    /**
+     * Whether <tt>warbler.nested_jars</tt> is set, in which case (STORED) jars
+     * are loaded directly from within the archive instead of being extracted.
+     */
+    protected boolean isNestedJars() {
+        return Boolean.parseBoolean( getSystemProperty("warbler.nested_jars", "false") );
+    }
+
+    /**
+     * @return whether the extracted entry (path) belongs on the class-path
+     */
+    protected boolean isClassPathEntry(final String path) {
+        return path.endsWith(".jar");
+    }
+
+    protected File createExtractRoot() throws IOException {
+        final File cacheDir = getExtractCacheDir();
+        if ( cacheDir != null ) return cacheDir;
+
+        final File root = File.createTempFile("jruby", "extract");
+        root.delete(); root.mkdirs();
+        extractRootLock = lockDirectory(root);
+        return root;
+    }
+
+    static final String LOCK_FILE = ".lock";
+
+    /**
+     * Marks a temporary directory as being used by this process (till the
+     * returned channel is closed), so that it is not swept as stale.
+     * @see #sweepStaleDirectories()
+     */
+    protected static FileChannel lockDirectory(final File dir) {
+        return lockDirectory(dir, false);
+    }
+
+    /**
+     * @param shared whether other processes might use the directory concurrently
+     * @return the locked channel or null if the directory is locked (by another process)
+     */
+    static FileChannel lockDirectory(final File dir, final boolean shared) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+            if ( channel.tryLock(0, Long.MAX_VALUE, shared) != null ) return channel;
+        }
+        catch (OverlappingFileLockException e) { } // held by this JVM
+        catch (IOException e) { debug(e); }
+        close(channel);
+        return null;
+    }
+
+    /**
+     * Deletes (in the background) temporary directories left behind by runs that
+     * did not exit cleanly, recognized by their lock file no longer being held.
+     */
+    protected void sweepStaleDirectories() {
+        final File tmpDir = new File(getSystemProperty("java.io.tmpdir", "."));
+        final Thread sweeper = new Thread("warbler-sweeper") {
+            @Override
+            public void run() {
+                final File[] dirs = tmpDir.listFiles();
+                if ( dirs == null ) return;
+                for ( final File dir : dirs ) {
+                    if ( isTemporaryDirectory(dir.getName()) && isStale(dir) ) {
+                        debug("deleting stale " + dir.getPath());
+                        deleteTree(dir, 1);
+                    }
+                }
+            }
+        };
+        sweeper.setDaemon(true);
+        sweeper.setPriority(Thread.MIN_PRIORITY);
+        sweeper.start();
+    }
+
+    protected boolean isTemporaryDirectory(final String name) {
+        return ( name.startsWith("jruby") && name.endsWith("extract") ) ||
+               ( name.startsWith("warbler") && name.endsWith("webroot") ); // WarMain
+    }
+
+    private static boolean isStale(final File dir) {
+        final File lockFile = new File(dir, LOCK_FILE);
+        // no lock file - being created (or not ours) - or (just) being locked
+        if ( ! lockFile.isFile() ) return false;
+        if ( lockFile.lastModified() > System.currentTimeMillis() - 60 * 1000 ) return false;
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            final FileLock lock = channel.tryLock();
+            return lock != null; // released by close
+        }
+        catch (OverlappingFileLockException e) { return false; } // held by this JVM
+        catch (IOException e) { return false; }
+        finally { close(channel); }
+    }
+
+    private static void close(final FileChannel channel) {
+        if ( channel != null ) {
+            try { channel.close(); } catch (IOException e) { debug(e); }
+        }
+    }
+
+    /**
+     * Opens the archive for reading entries, shared by all (extracting) threads.
+     */
+    protected JarFile openArchive() throws IOException {
+        return archiveFile = new JarFile(archive);
+    }
+
+    protected void closeArchive() throws IOException {
+        try {
+            if ( archiveFile != null ) archiveFile.close();
+        }
+        finally {
+            archiveFile = null;
+            synchronized (this) {
+                if ( archiveData != null ) archiveData.close();
+                archiveData = null; archiveRecords = null;
             }
+        }
+    }
 
-            extractRoot = File.createTempFile("jruby", "extract");
-            extractRoot.delete(); extractRoot.mkdirs();
+    /**
+     * Transfers a STORED entry's bytes straight from the archive's file channel.
+     */
+    private void transferEntry(final JarEntry entry, final FileChannel target) throws IOException {
+        final FileChannel channel; final ZipRecord record;
+        synchronized (this) {
+            if ( archiveData == null ) {
+                archiveData = new RandomAccessFile(archive, "r");
+                try {
+                    archiveRecords = ZipRecord.readCentralDirectory(archiveData.getChannel(), 0, archiveData.length());
+                }
+                catch (ZipException e) { // entries get streamed instead
+                    archiveRecords = Collections.emptyMap(); throw e;
+                }
+            }
+            channel = archiveData.getChannel();
+            record = archiveRecords.get(entry.getName());
+        }
+        if ( record == null ) throw new ZipException("entry " + entry.getName() + " not found in " + archive);
+        long position = record.dataOffset(channel);
+        long remaining = record.size;
+        while ( remaining > 0 ) {
+            final long transferred = channel.transferTo(position, remaining, target);
+            if ( transferred <= 0 ) throw new EOFException("unexpected end of entry " + entry.getName());
+            position += transferred; remaining -= transferred;
+        }
+    }
 
-            final List<URL> urls = new ArrayList<URL>(jarNames.size());
-            for (Map.Entry<String, JarEntry> e : jarNames.entrySet()) {
-                URL entryURL = extractEntry(e.getValue(), e.getKey());
+    /**
+     * Persistent extraction directory for this archive, if an extraction cache
+     * is configured using <tt>warbler.extract_cache</tt> (or WARBLER_EXTRACT_CACHE).
+     * The directory (e.g. <tt>/var/cache/app/app.war-1a2b3c-4d5e6f-17f0a1b2c3d</tt>)
+     * is keyed by the archive's name, path, size and modification time, it is
+     * kept on exit and entries are only re-extracted if their CRC changed.
+     * Directories of previous versions of the archive get deleted once no longer
+     * in use (running processes hold a shared lock).
+     */
+    protected File getExtractCacheDir() throws IOException {
+        if ( extractCacheDir != null ) return extractCacheDir;
+
+        final String cache = getSystemProperty("warbler.extract_cache", getENV("WARBLER_EXTRACT_CACHE"));
+        if ( cache == null || cache.length() == 0 ) return null;
+
+        final File dir = new File(cache, archiveKey());
+        if ( ! dir.mkdirs() && ! dir.isDirectory() ) {
+            warn("failed to create extract cache directory " + dir.getPath() + " (extracting to a temporary directory)");
+            return null;
+        }
+        debug("extract cache directory is " + dir.getPath());
+        extractCacheLock = lockDirectory(dir, true);
+        evictExtractCaches(dir);
+
+        final Properties index = new Properties();
+        final File indexFile = new File(dir, EXTRACT_INDEX);
+        if ( indexFile.isFile() ) {
+            final InputStream in = new FileInputStream(indexFile);
+            try { index.load(in); }
+            finally { in.close(); }
+        }
+        extractIndex = index;
+        return extractCacheDir = dir;
+    }
+
+    /**
+     * Deletes (in the background) cache directories of other versions of this
+     * archive (same name and path), unless a process still uses them.
+     */
+    private void evictExtractCaches(final File cacheDir) {
+        final File archiveFile = new File(archive);
+        final String prefix = archiveFile.getName() + '-' + Integer.toHexString(archiveFile.getAbsolutePath().hashCode()) + '-';
+        final File[] dirs = cacheDir.getParentFile().listFiles();
+        if ( dirs == null ) return;
+        final List<File> evicted = new ArrayList<File>();
+        for ( final File dir : dirs ) {
+            if ( dir.getName().startsWith(prefix) && ! dir.equals(cacheDir) && dir.isDirectory() ) evicted.add(dir);
+        }
+        if ( evicted.isEmpty() ) return;
+        final Thread evictor = new Thread("warbler-evictor") {
+            @Override
+            public void run() {
+                for ( final File dir : evicted ) {
+                    final FileChannel lock = lockDirectory(dir, false);
+                    if ( lock == null ) continue; // still in use
+                    debug("deleting previous extract cache " + dir.getPath());
+                    close(lock);
+                    deleteTree(dir, 1);
+                }
+            }
+        };
+        evictor.setDaemon(true);
+        evictor.setPriority(Thread.MIN_PRIORITY);
+        evictor.start();
+    }
+
+    /**
+     * @return a key identifying this archive (by its name, path, size and modification time)
+     */
+    protected String archiveKey() {
+        final File archiveFile = new File(archive);
+        return archiveFile.getName() + '-' + Integer.toHexString(archiveFile.getAbsolutePath().hashCode()) + '-' +
+            Long.toHexString(archiveFile.length()) + '-' + Long.toHexString(archiveFile.lastModified());
+    }
+
+    private static final String EXTRACT_INDEX = ".extract.index";
+
+    protected boolean isExtractCached() {
+        return extractIndex != null;
+    }
+
+    /**
+     * @return whether the (cached) file is up-to-date with the archive entry
+     */
+    protected boolean isExtracted(final JarEntry entry, final String path, final File file) {
+        if ( extractIndex == null ) return false;
+        final String checksum = extractIndex.getProperty(path);
+        return checksum != null && checksum.equals(entryChecksum(entry)) && file.length() == entry.getSize();
+    }
+
+    private static String entryChecksum(final JarEntry entry) {
+        return Long.toHexString(entry.getCrc()) + '/' + entry.getSize();
+    }
+
+    protected void saveExtractIndex() throws IOException {
+        if ( extractIndex == null || ! extractIndexChanged ) return;
+        final File indexFile = new File(extractCacheDir, EXTRACT_INDEX);
+        final File tmpFile = File.createTempFile(EXTRACT_INDEX, ".tmp", extractCacheDir);
+        final OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            extractIndex.store(out, archive);
+        }
+        finally {
+            out.close();
+        }
+        moveFile(tmpFile, indexFile);
+        extractIndexChanged = false;
+    }
+
+    private static void moveFile(final File source, final File target) throws IOException {
+        if ( source.renameTo(target) ) return;
+        target.delete(); // e.g. on Windows renaming fails if the target exists
+        if ( ! source.renameTo(target) ) {
+            source.delete();
+            throw new IOException("failed to move " + source.getPath() + " to " + target.getPath());
+        }
+    }
+
+    /**
+     * Extracts entries on a bounded pool of worker threads. The returned URLs
+     * keep the (archive) order of the given entries, the first failing entry
+     * cancels the remaining work and its exception is re-thrown.
+     */
+    protected URL[] extractEntries(final Map<String, JarEntry> entries, final int threads) throws Exception {
+        debug("extracting " + entries.size() + " entries using " + threads + " threads");
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+            final URL[] entryURLs = new URL[entries.size()];
+            int index = 0;
+            for (Map.Entry<String, JarEntry> e : entries.entrySet()) {
+                completion.submit(new EntryExtractor(e.getValue(), e.getKey(), entryURLs, index++));
+            }
+            for (int i = 0; i < index; i++) {
+                try {
+                    completion.take().get();
+                }
+                catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if ( cause instanceof Exception ) throw (Exception) cause;
+                    throw e;
+                }
+            }
+            final List<URL> urls = new ArrayList<URL>(entryURLs.length);
+            for (URL entryURL : entryURLs) {
                 if (entryURL != null) urls.add( entryURL );
             }
             return urls.toArray(new URL[urls.size()]);
         }
         finally {
-            jarFile.close();
+            executor.shutdownNow();
         }
     }
 
+    /**
+     * Number of threads used to extract entries, <tt>warbler.extract_threads</tt>
+     * defaults to 1 (serial extraction), 0 means one thread per available processor.
+     */
+    protected int getExtractThreads(final int entryCount) {
+        final String threads = getSystemProperty("warbler.extract_threads");
+        if ( threads == null || entryCount < 2 ) return 1;
+        int count;
+        try {
+            count = Integer.parseInt(threads.trim());
+        }
+        catch (NumberFormatException e) {
+            warn("invalid warbler.extract_threads value: '" + threads + "' (extracting serially)");
+            return 1;
+        }
+        if ( count <= 0 ) count = Runtime.getRuntime().availableProcessors();
+        return Math.min(count, entryCount);
+    }
+
     protected String getExtractEntryPath(final JarEntry entry) {
         final String name = entry.getName();
         if ( name.startsWith("META-INF/lib") && name.endsWith(".jar") ) {
@@ -90,33 +500,62 @@ public class JarMain implements Runnable {
             file.mkdirs();
             return null;
         }
-        final String entryPath = entryPath(entry.getName());
-        final InputStream entryStream;
-        try {
-            entryStream = new URI("jar", entryPath, null).toURL().openStream();
-        }
-        catch (IllegalArgumentException e) {
-            // TODO gems '%' file name "encoding" ?!
-            debug("failed to open jar:" + entryPath + " skipping entry: " + entry.getName(), e);
-            return null;
+        if ( isExtracted(entry, path, file) ) {
+            return file.toURI().toURL();
         }
+        writeEntry(entry, path, file);
+        // if (false) debug(entry.getName() + " extracted to " + file.getPath());
+        return file.toURI().toURL();
+    }
+
+    /**
+     * Writes an entry's content to the given file, files written to the extract
+     * cache are moved into place once complete (and recorded in the index).
+     * Requires the archive to be open (see {@link #openArchive()}).
+     */
+    protected void writeEntry(final JarEntry entry, final String path, final File file) throws IOException {
         final File parent = file.getParentFile();
         if ( parent != null ) parent.mkdirs();
-        FileOutputStream outStream = new FileOutputStream(file);
-        final byte[] buf = new byte[65536];
+        final boolean cached = isExtractCached();
+        final File target = cached ? File.createTempFile(".extract", ".tmp", parent) : file;
+        FileOutputStream outStream = new FileOutputStream(target);
+        boolean written = false;
         try {
-            int bytesRead;
-            while ((bytesRead = entryStream.read(buf)) != -1) {
-                outStream.write(buf, 0, bytesRead);
+            boolean transferred = false;
+            if ( entry.getMethod() == ZipEntry.STORED ) {
+                try {
+                    transferEntry(entry, outStream.getChannel());
+                    transferred = true;
+                }
+                catch (ZipException e) { // a central directory ZipRecord can not read
+                    debug("streaming " + entry.getName() + " (" + e.getMessage() + ")");
+                    outStream.getChannel().truncate(0);
+                }
+            }
+            if ( ! transferred ) {
+                final InputStream entryStream = archiveFile.getInputStream(entry);
+                try {
+                    final byte[] buf = new byte[65536];
+                    int bytesRead;
+                    while ((bytesRead = entryStream.read(buf)) != -1) {
+                        outStream.write(buf, 0, bytesRead);
+                    }
+                }
+                finally {
+                    entryStream.close();
+                }
             }
+            written = true;
         }
         finally {
-            entryStream.close();
             outStream.close();
-            file.deleteOnExit();
+            if ( cached && ! written ) target.delete();
+        }
+        if ( cached ) {
+            moveFile(target, file);
+            extractIndex.setProperty(path, entryChecksum(entry));
+            extractIndexChanged = true;
         }
-        // if (false) debug(entry.getName() + " extracted to " + file.getPath());
-        return file.toURI().toURL();
     }
 
     protected String entryPath(String name) {
@@ -125,20 +564,37 @@ public class JarMain implements Runnable {
     }
 
     protected Object newScriptingContainer(final URL[] jars) throws Exception {
-        setSystemProperty("org.jruby.embed.class.path", "");
-        classLoader = new URLClassLoader(jars);
-        Class scriptingContainerClass = Class.forName("org.jruby.embed.ScriptingContainer", true, classLoader);
-        Object scriptingContainer = scriptingContainerClass.newInstance();
-        debug("scripting container class loader urls: " + Arrays.toString(jars));
-        invokeMethod(scriptingContainer, "setArgv", (Object) args);
-        invokeMethod(scriptingContainer, "setClassLoader", new Class[] { ClassLoader.class }, classLoader);
-        return scriptingContainer;
+        final StartupProfile.Phase phase = beginPhase("newScriptingContainer");
+        try {
+            setSystemProperty("org.jruby.embed.class.path", "");
+            classLoader = newClassLoader(jars);
+            Class scriptingContainerClass = Class.forName("org.jruby.embed.ScriptingContainer", true, classLoader);
+            Object scriptingContainer = scriptingContainerClass.newInstance();
+            debug("scripting container class loader urls: " + Arrays.toString(jars));
+            invokeMethod(scriptingContainer, "setArgv", (Object) args);
+            invokeMethod(scriptingContainer, "setClassLoader", new Class[] { ClassLoader.class }, classLoader);
+            return scriptingContainer;
+        }
+        finally {
+            endPhase(phase);
+        }
+    }
+
+    protected URLClassLoader newClassLoader(final URL[] jars) {
+        return nestedClassLoader == null ? new URLClassLoader(jars) : new URLClassLoader(jars, nestedClassLoader);
     }
 
     protected int launchJRuby(final URL[] jars) throws Exception {
         final Object scriptingContainer = newScriptingContainer(jars);
         debug("invoking " + archive + " with: " + Arrays.deepToString(args));
-        Object outcome = invokeMethod(scriptingContainer, "runScriptlet", launchScript());
+        final Object outcome;
+        final StartupProfile.Phase phase = beginPhase("runScriptlet");
+        try {
+            outcome = invokeMethod(scriptingContainer, "runScriptlet", launchScript());
+        }
+        finally {
+            endPhase(phase);
+        }
         return ( outcome instanceof Number ) ? ( (Number) outcome ).intValue() : 0;
     }
 
@@ -154,10 +610,228 @@ public class JarMain implements Runnable {
     }
 
     protected int start() throws Exception {
-        final URL[] jars = extractArchive();
+        final URL[] jars;
+        final StartupProfile.Phase phase = beginPhase("extractArchive");
+        try {
+            jars = extractArchive();
+        }
+        finally {
+            endPhase(phase);
+        }
         return launchJRuby(jars);
     }
 
+    /**
+     * @return launcher options packaged with the archive (at build time)
+     */
+    protected Properties getLauncherProperties() {
+        if ( launcherProperties == null ) {
+            final Properties props = new Properties();
+            final InputStream is = getClass().getResourceAsStream(LAUNCHER_PROPERTIES);
+            if ( is != null ) {
+                try {
+                    props.load(is);
+                }
+                catch (IOException e) {
+                    warn("failed to load " + LAUNCHER_PROPERTIES + " (" + e + ")");
+                }
+                finally {
+                    try { is.close(); } catch (IOException e) { debug(e); }
+                }
+            }
+            launcherProperties = props;
+        }
+        return launcherProperties;
+    }
+
+    /**
+     * Sets JRuby options (e.g. <tt>jruby.compile.mode</tt> or <tt>jruby.jit.threshold</tt>)
+     * packaged in the launcher properties as system properties, before a runtime's
+     * (RubyInstanceConfig) defaults get resolved. Options set on the command line win.
+     */
+    protected void setJRubyProperties() {
+        for ( Map.Entry<Object, Object> entry : getLauncherProperties().entrySet() ) {
+            final String key = (String) entry.getKey();
+            if ( key.startsWith("jruby.") && getSystemProperty(key) == null ) {
+                debug("setting " + key + "=" + entry.getValue());
+                setSystemProperty(key, (String) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Whether to re-execute in a child JVM, with JVM options (and/or class data
+     * sharing) declared by the archive's launcher properties.
+     * Might be disabled using <tt>-Dwarbler.relaunch=false</tt>.
+     */
+    protected boolean isRelaunch() {
+        if ( Boolean.parseBoolean(getSystemProperty("warbler.relaunched", "false")) ) return false;
+        if ( ! Boolean.parseBoolean(getSystemProperty("warbler.relaunch", "true")) ) return false;
+        final Properties props = getLauncherProperties();
+        return props.getProperty("jvm.options") != null || Boolean.parseBoolean(props.getProperty("jvm.cds"));
+    }
+
+    /**
+     * Command for starting another JVM (without the class-path and main class) :
+     * the java executable, JVM options from the launcher properties (unless this
+     * is the relaunched JVM already) followed by this JVM's input arguments,
+     * except for options from the environment the other JVM picks up itself.
+     */
+    protected List<String> javaCommand() {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(getSystemProperty("java.home"), "bin"), "java").getPath());
+        final String jvmOptions = getLauncherProperties().getProperty("jvm.options");
+        if ( jvmOptions != null && getSystemProperty("warbler.relaunched") == null ) {
+            for ( String option : jvmOptions.split("\n") ) {
+                if ( option.trim().length() > 0 ) command.add(option.trim());
+            }
+        }
+        // options given to this JVM (e.g. -Dwarbler.debug=true or -Xmx) come last to take precedence
+        final List<String> inherited = environmentOptions(); // leading the input arguments
+        int skip = 0;
+        for ( String arg : ManagementFactory.getRuntimeMXBean().getInputArguments() ) {
+            if ( skip < inherited.size() && arg.equals(inherited.get(skip)) ) { skip++; continue; }
+            if ( arg.startsWith("-agentlib:jdwp") || arg.startsWith("-Xrunjdwp") ) continue; // port in use
+            command.add(arg);
+        }
+        return command;
+    }
+
+    /**
+     * @return JVM options from the environment, JAVA_TOOL_OPTIONS and (as the java
+     * launcher picks it up on Java 9+) JDK_JAVA_OPTIONS
+     */
+    protected List<String> environmentOptions() {
+        final List<String> options = new ArrayList<String>();
+        splitOptions(getENV("JAVA_TOOL_OPTIONS"), options);
+        if ( getJavaVersion() >= 9 ) splitOptions(getENV("JDK_JAVA_OPTIONS"), options);
+        return options;
+    }
+
+    // split on white-space, quotes group characters (and get removed) as with the JVM
+    private static void splitOptions(final String value, final List<String> options) {
+        if ( value == null ) return;
+        final StringBuilder option = new StringBuilder();
+        boolean inOption = false; char quote = 0;
+        for ( int i = 0; i < value.length(); i++ ) {
+            final char c = value.charAt(i);
+            if ( quote != 0 ) {
+                if ( c == quote ) quote = 0;
+                else option.append(c);
+            }
+            else if ( c == '"' || c == '\'' ) {
+                quote = c; inOption = true;
+            }
+            else if ( Character.isWhitespace(c) ) {
+                if ( inOption ) options.add(option.toString());
+                option.setLength(0); inOption = false;
+            }
+            else {
+                option.append(c); inOption = true;
+            }
+        }
+        if ( inOption ) options.add(option.toString());
+    }
+
+    /**
+     * Runs the archive in a child JVM (sharing standard streams with this one).
+     * @return the child's exit status
+     */
+    protected int relaunch() throws Exception {
+        final List<String> command = javaCommand();
+        command.add("-Dwarbler.relaunched=true");
+
+        final List<String> classPath = classDataSharing(command);
+        if ( classPath == null ) {
+            command.add("-jar"); command.add(archive);
+        }
+        else {
+            final StringBuilder cp = new StringBuilder();
+            for ( String path : classPath ) {
+                if ( cp.length() > 0 ) cp.append(File.pathSeparatorChar);
+                cp.append(path);
+            }
+            command.add("-cp"); command.add(cp.toString());
+            command.add(getClass().getName());
+        }
+        command.addAll(Arrays.asList(args));
+
+        debug("relaunching with: " + command);
+        relaunched = new ProcessBuilder(command).inheritIO().start();
+        return relaunched.waitFor();
+    }
+
+    /**
+     * Sets up application class data sharing (Java 13+) for the relaunched JVM,
+     * the first (training) run dumps loaded classes at exit, later runs map them.
+     * The extraction cache is required, as the class-path needs to be stable.
+     * @return class-path for the relaunched JVM, null without class data sharing
+     */
+    protected List<String> classDataSharing(final List<String> command) throws Exception {
+        if ( ! Boolean.parseBoolean(getLauncherProperties().getProperty("jvm.cds")) ) return null;
+        final int javaVersion = getJavaVersion();
+        if ( javaVersion < 13 ) {
+            debug("class data sharing not supported on Java " + javaVersion);
+            return null;
+        }
+        final File cacheDir = getExtractCacheDir();
+        if ( cacheDir == null ) {
+            warn("class data sharing requires an extraction cache (-Dwarbler.extract_cache=...)");
+            return null;
+        }
+
+        final List<String> classPath = new ArrayList<String>();
+        classPath.add(new File(archive).getAbsolutePath());
+        for ( URL url : relaunchClassPath() ) {
+            if ( url != null ) classPath.add(new File(url.toURI()).getAbsolutePath());
+        }
+
+        final String version = getSystemProperty("java.vm.version", "").replaceAll("[^\\w.+-]", "_");
+        final File sharedArchive = new File(cacheDir, "classes-" + version + ".jsa");
+        if ( javaVersion >= 19 ) { // (re-)creates the archive if missing or not usable
+            command.add("-XX:+AutoCreateSharedArchive");
+            command.add("-XX:SharedArchiveFile=" + sharedArchive.getPath());
+        }
+        else if ( sharedArchive.exists() ) {
+            command.add("-XX:SharedArchiveFile=" + sharedArchive.getPath());
+        }
+        else {
+            debug("class data sharing archive will be created at " + sharedArchive.getPath());
+            command.add("-XX:ArchiveClassesAtExit=" + sharedArchive.getPath());
+        }
+        return classPath;
+    }
+
+    /**
+     * Jars (extracted into the cache) the relaunched JVM loads from its class-path.
+     */
+    protected URL[] relaunchClassPath() throws Exception {
+        return extractArchive();
+    }
+
+    static int getJavaVersion() {
+        String version = getSystemProperty("java.specification.version", "1.5");
+        if ( version.startsWith("1.") ) version = version.substring(2);
+        try {
+            return Integer.parseInt(version);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Starts recording a (start-up) phase, returns null unless profiling.
+     * @see #endPhase(StartupProfile.Phase)
+     */
+    protected StartupProfile.Phase beginPhase(final String name) {
+        return profile == null ? null : profile.begin(name);
+    }
+
+    protected void endPhase(final StartupProfile.Phase phase) {
+        if ( phase != null ) phase.end();
+    }
+
     protected void debug(String msg) {
         debug(msg, null);
     }
@@ -189,38 +863,591 @@ public class JarMain implements Runnable {
     }
 
     protected void delete(File f) {
-        try {
-          if (f.isDirectory() && !isSymlink(f)) {
-              File[] children = f.listFiles();
-              for (int i = 0; i < children.length; i++) {
-                  delete(children[i]);
-              }
-          }
-          f.delete();
+        deleteTree(f, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Deletes a file tree without following (directory) links, top-level
+     * directories are walked in parallel using up to the given threads.
+     */
+    protected static void deleteTree(final File root, final int threads) {
+        final File[] children = root.isDirectory() ? root.listFiles() : null;
+        if ( threads > 1 && children != null && children.length > 1 ) {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, children.length));
+            try {
+                final List<Future<?>> deletes = new ArrayList<Future<?>>(children.length);
+                for ( final File child : children ) {
+                    deletes.add(executor.submit(new Runnable() {
+                        public void run() { TreeDeleter.delete(child.toPath()); }
+                    }));
+                }
+                for ( Future<?> delete : deletes ) {
+                    try { delete.get(); }
+                    catch (ExecutionException e) { error(e.getCause()); }
+                    catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+                }
+            }
+            finally {
+                executor.shutdown();
+            }
         }
-        catch (IOException e) { error(e); }
+        TreeDeleter.delete(root.toPath());
     }
 
-    protected boolean isSymlink(File file) throws IOException {
-        if (file == null) throw new NullPointerException("File must not be null");
-        final File canonical;
-        if ( file.getParent() == null ) canonical = file;
-        else {
-            File parentDir = file.getParentFile().getCanonicalFile();
-            canonical = new File(parentDir, file.getName());
+    static final class TreeDeleter extends SimpleFileVisitor<Path> {
+
+        static final TreeDeleter INSTANCE = new TreeDeleter();
+
+        static void delete(final Path root) {
+            try {
+                // no FOLLOW_LINKS : links get deleted, not what they point to
+                Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE, INSTANCE);
+            }
+            catch (IOException e) { error(e); }
         }
-        return ! canonical.getCanonicalFile().equals( canonical.getAbsoluteFile() );
+
+        @Override
+        public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+            deleteFile(file);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+            deleteFile(file);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(final Path dir, final IOException e) {
+            deleteFile(dir);
+            return FileVisitResult.CONTINUE;
+        }
+
+        private static void deleteFile(final Path file) {
+            try {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e) {
+                if ( isDebug() ) System.out.println("failed to delete " + file + " (" + e + ")");
+            }
+        }
+
+    }
+
+    private class EntryExtractor implements Callable<Integer> {
+
+        private final JarEntry entry;
+        private final String path;
+        private final URL[] entryURLs;
+        private final int index;
+
+        EntryExtractor(final JarEntry entry, final String path, final URL[] entryURLs, final int index) {
+            this.entry = entry; this.path = path;
+            this.entryURLs = entryURLs; this.index = index;
+        }
+
+        public Integer call() throws Exception {
+            entryURLs[index] = extractEntry(entry, path);
+            return index;
+        }
+
     }
 
     public void run() {
+        final Process relaunched = this.relaunched;
+        if ( relaunched != null ) { // e.g. TERM-inated - let the child JVM clean up
+            relaunched.destroy();
+            try { relaunched.waitFor(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        else if ( profile != null ) {
+            profile.report(archive, getClass().getName());
+        }
         // If the URLClassLoader isn't closed, on Windows, temp JARs won't be cleaned up
-        try {
-            invokeMethod(classLoader, "close");
+        if ( classLoader != null ) {
+            try {
+                invokeMethod(classLoader, "close");
+            }
+            catch (NoSuchMethodException e) { } // We're not being run on Java >= 7
+            catch (Exception e) { error(e); }
+        }
+        if ( nestedClassLoader != null ) nestedClassLoader.close();
+
+        close(extractRootLock); close(extractCacheLock);
+        if ( extractRoot != null && ! isExtractCached() ) delete(extractRoot);
+    }
+
+    /**
+     * Records start-up phases when <tt>warbler.profile</tt> is set : the wall
+     * clock time, bytes allocated by the thread running the phase (on JVMs that
+     * support it) and garbage collections. A JSON report is written at exit
+     * into the given file (or <tt>warbler-profile.json</tt> when set to true),
+     * phases still running at that point are reported as not complete.
+     */
+    static final class StartupProfile {
+
+        private final String target;
+        private final long startTime = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final List<Phase> phases = new ArrayList<Phase>();
+
+        private final Object threadBean;
+        private final Method allocatedBytes; // com.sun.management.ThreadMXBean
+
+        static StartupProfile create() {
+            final String target = getSystemProperty("warbler.profile");
+            if ( target == null || target.length() == 0 || target.equals("false") ) return null;
+            return new StartupProfile(target.equals("true") ? "warbler-profile.json" : target);
+        }
+
+        private StartupProfile(final String target) {
+            this.target = target;
+            Object bean = null; Method method = null;
+            try {
+                bean = ManagementFactory.getThreadMXBean();
+                Class<?> klass = Class.forName("com.sun.management.ThreadMXBean");
+                if ( klass.isInstance(bean) ) {
+                    method = klass.getMethod("getThreadAllocatedBytes", Long.TYPE);
+                }
+            }
+            catch (Exception e) { debug(e); } // not a HotSpot (alike) JVM
+            this.threadBean = bean; this.allocatedBytes = method;
+        }
+
+        synchronized Phase begin(final String name) {
+            final Phase phase = new Phase(name);
+            phases.add(phase);
+            return phase;
+        }
+
+        private long allocatedBytes(final long threadId) {
+            if ( allocatedBytes == null ) return -1;
+            try {
+                return (Long) allocatedBytes.invoke(threadBean, threadId);
+            }
+            catch (Exception e) { return -1; }
+        }
+
+        private static long[] collections() {
+            long count = 0, time = 0;
+            for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+                if ( gc.getCollectionCount() > 0 ) count += gc.getCollectionCount();
+                if ( gc.getCollectionTime() > 0 ) time += gc.getCollectionTime();
+            }
+            return new long[] { count, time };
+        }
+
+        final class Phase {
+
+            final String name;
+            final long threadId = Thread.currentThread().getId();
+            final long start = System.nanoTime();
+            final long startAllocated;
+            final long[] startCollections;
+            // set once the phase ends :
+            long end = -1, allocated = -1, collections, collectionTime;
+
+            Phase(final String name) {
+                this.name = name;
+                this.startAllocated = allocatedBytes(threadId);
+                this.startCollections = collections();
+            }
+
+            void end() {
+                synchronized (StartupProfile.this) {
+                    if ( end != -1 ) return;
+                    end = System.nanoTime();
+                    final long allocatedNow = allocatedBytes(threadId);
+                    allocated = startAllocated == -1 || allocatedNow == -1 ? -1 : allocatedNow - startAllocated;
+                    final long[] endCollections = collections();
+                    collections = endCollections[0] - startCollections[0];
+                    collectionTime = endCollections[1] - startCollections[1];
+                }
+            }
+
+        }
+
+        synchronized void report(final String archive, final String launcher) {
+            final List<Boolean> complete = new ArrayList<Boolean>(phases.size());
+            for ( Phase phase : phases ) {
+                complete.add(phase.end != -1);
+                phase.end(); // those still running end now
+            }
+
+            final StringBuilder json = new StringBuilder(512);
+            json.append("{\n");
+            json.append("  \"archive\": ").append(quote(archive)).append(",\n");
+            json.append("  \"launcher\": ").append(quote(launcher)).append(",\n");
+            json.append("  \"startTime\": ").append(startTime).append(",\n");
+            long jvmStartTime = -1;
+            try { jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime(); }
+            catch (Exception e) { debug(e); }
+            if ( jvmStartTime > 0 ) {
+                json.append("  \"jvmStartup\": ").append(startTime - jvmStartTime).append(",\n");
+            }
+            json.append("  \"total\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+            json.append("  \"phases\": [");
+            for ( int i = 0; i < phases.size(); i++ ) {
+                final Phase phase = phases.get(i);
+                json.append(i == 0 ? "\n" : ",\n");
+                json.append("    { \"name\": ").append(quote(phase.name));
+                json.append(", \"start\": ").append(millis(phase.start - startNanos));
+                json.append(", \"time\": ").append(millis(phase.end - phase.start));
+                json.append(", \"allocated\": ").append(phase.allocated);
+                json.append(", \"gcCount\": ").append(phase.collections);
+                json.append(", \"gcTime\": ").append(phase.collectionTime);
+                json.append(", \"complete\": ").append(complete.get(i)).append(" }");
+            }
+            json.append("\n  ]\n}\n");
+
+            try {
+                final Writer out = new OutputStreamWriter(new FileOutputStream(target), "UTF-8");
+                try {
+                    out.write(json.toString());
+                }
+                finally {
+                    out.close();
+                }
+            }
+            catch (IOException e) {
+                error("failed to write profile to " + target, e);
+            }
+        }
+
+        private static String millis(final long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+        }
+
+        private static String quote(final String str) {
+            final StringBuilder quoted = new StringBuilder(str.length() + 2).append('"');
+            for ( int i = 0; i < str.length(); i++ ) {
+                final char c = str.charAt(i);
+                switch (c) {
+                    case '"' : quoted.append("\\\""); break;
+                    case '\\' : quoted.append("\\\\"); break;
+                    case '\n' : quoted.append("\\n"); break;
+                    case '\r' : quoted.append("\\r"); break;
+                    case '\t' : quoted.append("\\t"); break;
+                    default :
+                        if ( c < 0x20 ) quoted.append(String.format("\\u%04x", (int) c));
+                        else quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+
+    }
+
+    /**
+     * Loads classes and resources from jars nested (STORED) in the archive,
+     * reading them in place using the archive's (and nested jars') central
+     * directory, thus the jars do not need to be extracted.
+     */
+    static class NestedJarClassLoader extends ClassLoader {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final List<String> jarNames;
+        private final List<Map<String, ZipRecord>> jars;
+        private final Map<String, ProtectionDomain> domains = new HashMap<String, ProtectionDomain>();
+        private final URLStreamHandler handler = new NestedJarURLHandler(this);
+
+        NestedJarClassLoader(final File archive, final List<String> jarNames, final ClassLoader parent)
+            throws IOException {
+            super(parent);
+            this.file = new RandomAccessFile(archive, "r");
+            this.channel = file.getChannel();
+            this.jarNames = jarNames;
+            this.jars = new ArrayList<Map<String, ZipRecord>>(jarNames.size());
+            try {
+                final Map<String, ZipRecord> outer = ZipRecord.readCentralDirectory(channel, 0, channel.size());
+                for ( String name : jarNames ) {
+                    final ZipRecord jar = outer.get(name);
+                    if ( jar == null || jar.method != ZipEntry.STORED ) {
+                        throw new ZipException(name + " is not a stored entry of " + archive);
+                    }
+                    jars.add( ZipRecord.readCentralDirectory(channel, jar.dataOffset(channel), jar.size) );
+                }
+            }
+            catch (IOException e) {
+                close(); throw e;
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            final String path = name.replace('.', '/') + ".class";
+            for ( int i = 0; i < jars.size(); i++ ) {
+                final ZipRecord entry = jars.get(i).get(path);
+                if ( entry == null ) continue;
+                final byte[] bytes;
+                try {
+                    bytes = readEntry(entry);
+                }
+                catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+                final int dot = name.lastIndexOf('.');
+                if ( dot > 0 ) definePackage(name.substring(0, dot));
+                return defineClass(name, bytes, 0, bytes.length, getProtectionDomain(i));
+            }
+            throw new ClassNotFoundException(name);
+        }
+
+        // getPackage(String) is deprecated on 9+, its replacement getDefinedPackage is not on Java 8
+        @SuppressWarnings("deprecation")
+        private void definePackage(final String pkg) {
+            if ( getPackage(pkg) != null ) return;
+            try {
+                definePackage(pkg, null, null, null, null, null, null, null);
+            }
+            catch (IllegalArgumentException e) { } // defined concurrently
+        }
+
+        @Override
+        protected URL findResource(final String name) {
+            for ( int i = 0; i < jars.size(); i++ ) {
+                if ( jars.get(i).containsKey(name) ) return resourceURL(i, name);
+            }
+            return null;
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(final String name) {
+            final List<URL> urls = new ArrayList<URL>(2);
+            for ( int i = 0; i < jars.size(); i++ ) {
+                if ( jars.get(i).containsKey(name) ) urls.add( resourceURL(i, name) );
+            }
+            return Collections.enumeration(urls);
+        }
+
+        private URL resourceURL(final int jar, final String name) {
+            try {
+                return new URL(NestedJarURLHandler.PROTOCOL, null, -1, '/' + jarNames.get(jar) + "!/" + name, handler);
+            }
+            catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private synchronized ProtectionDomain getProtectionDomain(final int jar) {
+            final String jarName = jarNames.get(jar);
+            ProtectionDomain domain = domains.get(jarName);
+            if ( domain == null ) {
+                final URL location = resourceURL(jar, "");
+                domain = new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null, this, null);
+                domains.put(jarName, domain);
+            }
+            return domain;
+        }
+
+        InputStream openStream(final String jarName, final String name) throws IOException {
+            final int jar = jarNames.indexOf(jarName);
+            final ZipRecord entry = jar == -1 ? null : jars.get(jar).get(name);
+            if ( entry == null ) {
+                throw new IOException("entry " + name + " not found in " + jarName);
+            }
+            return new ByteArrayInputStream(readEntry(entry));
+        }
+
+        private byte[] readEntry(final ZipRecord entry) throws IOException {
+            final long offset = entry.dataOffset(channel);
+            if ( entry.method == ZipEntry.STORED ) {
+                final ByteBuffer data = ByteBuffer.allocate((int) entry.size);
+                ZipRecord.readFully(channel, data, offset);
+                return data.array();
+            }
+            // an extra (dummy) byte as required by Inflater's nowrap mode
+            final ByteBuffer data = ByteBuffer.allocate((int) entry.compressedSize + 1);
+            data.limit((int) entry.compressedSize);
+            ZipRecord.readFully(channel, data, offset);
+            final byte[] bytes = new byte[(int) entry.size];
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data.array(), 0, data.capacity());
+                int length = 0;
+                while ( length < bytes.length && ! inflater.finished() ) {
+                    final int inflated = inflater.inflate(bytes, length, bytes.length - length);
+                    if ( inflated == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                        throw new EOFException("unexpected end of entry " + entry.name);
+                    }
+                    length += inflated;
+                }
+            }
+            catch (DataFormatException e) {
+                throw new ZipException("invalid entry " + entry.name + ": " + e.getMessage());
+            }
+            finally {
+                inflater.end();
+            }
+            return bytes;
+        }
+
+        void close() {
+            try {
+                file.close();
+            }
+            catch (IOException e) { error(e); }
+        }
+
+    }
+
+    static class NestedJarURLHandler extends URLStreamHandler {
+
+        static final String PROTOCOL = "warbler-nested";
+
+        private final NestedJarClassLoader loader;
+
+        NestedJarURLHandler(final NestedJarClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        protected URLConnection openConnection(final URL url) throws IOException {
+            final String path = url.getPath();
+            final int separator = path.indexOf("!/");
+            if ( separator == -1 ) throw new MalformedURLException("no !/ in " + url);
+            final String jarName = path.substring(1, separator);
+            final String name = path.substring(separator + 2);
+            return new URLConnection(url) {
+                public void connect() { connected = true; }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return loader.openStream(jarName, name);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * A (central directory) record of a zip archive.
+     */
+    static final class ZipRecord {
+
+        private static final int LOCAL_HEADER = 0x04034b50;
+        private static final int CENTRAL_HEADER = 0x02014b50;
+        private static final int END_HEADER = 0x06054b50;
+        private static final int ZIP64_END_HEADER = 0x06064b50;
+        private static final int ZIP64_LOCATOR = 0x07064b50;
+        private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long headerOffset;
+        private volatile long dataOffset = -1;
+
+        ZipRecord(String name, int method, long crc, long compressedSize, long size, long headerOffset) {
+            this.name = name; this.method = method; this.crc = crc;
+            this.compressedSize = compressedSize; this.size = size;
+            this.headerOffset = headerOffset;
+        }
+
+        /**
+         * @return the (absolute) position of the entry's data in the file
+         */
+        long dataOffset(final FileChannel channel) throws IOException {
+            if ( dataOffset == -1 ) {
+                final ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, header, headerOffset);
+                if ( header.getInt(0) != LOCAL_HEADER ) {
+                    throw new ZipException("invalid local header for entry " + name);
+                }
+                dataOffset = headerOffset + 30 + ( header.getShort(26) & 0xFFFF ) + ( header.getShort(28) & 0xFFFF );
+            }
+            return dataOffset;
+        }
+
+        /**
+         * Reads the central directory of a zip archive starting at the given
+         * position, which might be a (STORED) entry in an outer archive.
+         */
+        static Map<String, ZipRecord> readCentralDirectory(final FileChannel channel, final long start, final long length)
+            throws IOException {
+            final int tailLength = (int) Math.min(length, 0xFFFF + 22);
+            final long tailOffset = start + length - tailLength;
+            final ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, tail, tailOffset);
+            int end = -1;
+            for ( int i = tailLength - 22; i >= 0; i-- ) {
+                if ( tail.getInt(i) == END_HEADER ) { end = i; break; }
+            }
+            if ( end == -1 ) throw new ZipException("end of central directory not found");
+
+            long count = tail.getShort(end + 10) & 0xFFFF;
+            long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+            long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+            long directoryEnd = tailOffset + end; // the central directory is followed by the end record(s)
+            if ( end >= 20 && tail.getInt(end - 20) == ZIP64_LOCATOR ) {
+                // the Zip64 end record usually precedes the locator, otherwise use its (relative) offset
+                final ByteBuffer zip64 = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                long zip64End = directoryEnd - 20 - 56;
+                if ( zip64End >= start ) readFully(channel, zip64, zip64End);
+                if ( zip64End < start || zip64.getInt(0) != ZIP64_END_HEADER ) {
+                    zip64End = start + tail.getLong(end - 20 + 8);
+                    zip64.clear(); readFully(channel, zip64, zip64End);
+                    if ( zip64.getInt(0) != ZIP64_END_HEADER ) {
+                        throw new ZipException("invalid Zip64 end of central directory");
+                    }
+                }
+                count = zip64.getLong(32); directorySize = zip64.getLong(40); directoryOffset = zip64.getLong(48);
+                directoryEnd = zip64End;
+            }
+            if ( directorySize > Integer.MAX_VALUE ) throw new ZipException("central directory too large");
+            // offsets are relative to the archive start (accounts for prepended data)
+            final long directoryStart = directoryEnd - directorySize;
+            final long base = directoryStart - directoryOffset;
+
+            final ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, directory, directoryStart);
+            final Map<String, ZipRecord> records = new HashMap<String, ZipRecord>((int) Math.min(count * 4 / 3 + 1, 1 << 20));
+            int pos = 0;
+            for ( long i = 0; i < count; i++ ) {
+                if ( directory.getInt(pos) != CENTRAL_HEADER ) {
+                    throw new ZipException("invalid central directory header");
+                }
+                final int method = directory.getShort(pos + 10) & 0xFFFF;
+                final long crc = directory.getInt(pos + 16) & 0xFFFFFFFFL;
+                long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+                long size = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+                final int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+                final int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+                final int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+                long headerOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+                final String name = new String(directory.array(), pos + 46, nameLength, "UTF-8");
+
+                int extra = pos + 46 + nameLength; final int extraEnd = extra + extraLength;
+                while ( extra + 4 <= extraEnd ) {
+                    final int id = directory.getShort(extra) & 0xFFFF, len = directory.getShort(extra + 2) & 0xFFFF;
+                    if ( id == 0x0001 ) { // Zip64 extended information (only the saturated values)
+                        int field = extra + 4;
+                        if ( size == ZIP64_LIMIT ) { size = directory.getLong(field); field += 8; }
+                        if ( compressedSize == ZIP64_LIMIT ) { compressedSize = directory.getLong(field); field += 8; }
+                        if ( headerOffset == ZIP64_LIMIT ) headerOffset = directory.getLong(field);
+                    }
+                    extra += 4 + len;
+                }
+                if ( ! records.containsKey(name) ) {
+                    records.put(name, new ZipRecord(name, method, crc, compressedSize, size, base + headerOffset));
+                }
+                pos += 46 + nameLength + extraLength + commentLength;
+            }
+            return records;
+        }
+
+        static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+            while ( buffer.hasRemaining() ) {
+                final int read = channel.read(buffer, position);
+                if ( read == -1 ) throw new EOFException();
+                position += read;
+            }
         }
-        catch (NoSuchMethodException e) { } // We're not being run on Java >= 7
-        catch (Exception e) { error(e); }
 
-        if ( extractRoot != null ) delete(extractRoot);
     }
 
     public static void main(String[] args) {
@@ -230,7 +1457,14 @@ public class JarMain implements Runnable {
     protected static void doStart(final JarMain main) {
         int exit;
         try {
-            exit = main.start();
+            if ( main.isRelaunch() ) {
+                exit = main.relaunch();
+            }
+            else {
+                main.sweepStaleDirectories();
+                main.setJRubyProperties();
+                exit = main.start();
+            }
         }
         catch (Exception e) {
             Throwable t = e;
@@ -6,20 +6,68 @@
  */
 
 import java.lang.reflect.Method;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
 import java.io.ByteArrayInputStream;
 import java.io.SequenceInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.Map;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipException;
 
 /**
  * Used as a Main-Class in the manifest for a .war file, so that you can run
@@ -60,6 +108,8 @@ import java.util.jar.JarEntry;
  * props = jetty.home
  * jetty.home = {{webroot}}
  * </pre>
+ * A system property given on the command line takes precedence over the value
+ * in webserver.properties (e.g. <tt>java -Djetty.threads.max=50 -jar app.war</tt>).
  */
 public class WarMain extends JarMain {
 
@@ -83,10 +133,26 @@ public class WarMain extends JarMain {
     private final String executable;
     private final String[] executableArgv;
 
+    /**
+     * with an executable (-S) and lazy extraction (<tt>config.lazy_extract</tt> or
+     * <tt>warbler.lazy_extract</tt>) only jars get extracted, application files and
+     * gems are loaded from the (indexed) archive as needed
+     */
+    private final boolean lazyExtract;
+
     private File webroot;
+    private FileChannel webrootLock;
+    private NestedJarClassLoader webserverLoader; // webserver.jar loaded in place
+    private volatile Supervisor supervisor; // running the webserver in worker JVMs
+    private volatile Daemon daemon; // serving (-S) commands
+    private Socket daemonSocket; // connected to a daemon (forwarding the -S command)
 
     WarMain(final String[] args) {
-        super(args);
+        this(args, true);
+    }
+
+    private WarMain(final String[] args, final boolean shutdownHook) {
+        super(args, shutdownHook);
         final List<String> argsList = Arrays.asList(args);
         final int sIndex = argsList.indexOf("-S");
         if ( sIndex == -1 ) {
@@ -111,44 +177,101 @@ public class WarMain extends JarMain {
 
             executable = execArg;
         }
+        lazyExtract = executable != null && isLazyExtract();
     }
 
-    private URL extractWebserver() throws Exception {
+    private boolean isLazyExtract() {
+        final String lazy = getLauncherProperties().getProperty("lazy_extract", "false");
+        if ( ! Boolean.parseBoolean( getSystemProperty("warbler.lazy_extract", lazy) ) ) return false;
+        // JRuby lists (and globs) uri:classloader: directories using their .jrubydir index
+        if ( getClass().getResource("/WEB-INF/.jrubydir") == null ) {
+            warn("archive is not indexed for lazy extraction (set config.lazy_extract = true), extracting");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * With <tt>warbler.nested_jars</tt> a STORED webserver.jar is loaded directly
+     * from the archive, otherwise it's extracted (or re-used from the cache).
+     */
+    private ClassLoader webserverClassLoader() throws Exception {
+        if ( isNestedJars() ) {
+            try {
+                webserverLoader = new NestedJarClassLoader(new File(archive),
+                    Collections.singletonList(WEBSERVER_JAR.substring(1)), ClassLoader.getSystemClassLoader());
+                createWebroot();
+                debug("loading webserver.jar from " + archive);
+                return webserverLoader;
+            }
+            catch (ZipException e) { // not STORED (or missing)
+                debug(e.getMessage() + ", extracting");
+            }
+        }
+        return new URLClassLoader(new URL[] { extractWebserver() });
+    }
+
+    private void createWebroot() throws IOException {
         this.webroot = File.createTempFile("warbler", "webroot");
         this.webroot.delete();
         this.webroot.mkdirs();
+        this.webrootLock = lockDirectory(this.webroot);
         this.webroot = new File(this.webroot, new File(archive).getName());
         debug("webroot directory is " + this.webroot.getPath());
-        InputStream jarStream = new URI("jar", entryPath(WEBSERVER_JAR), null).toURL().openStream();
-        File jarFile = File.createTempFile("webserver", ".jar");
-        jarFile.deleteOnExit();
-        FileOutputStream outStream = new FileOutputStream(jarFile);
+    }
+
+    private URL extractWebserver() throws Exception {
+        createWebroot();
+        final File cacheDir = getExtractCacheDir();
+        final JarFile jar = openArchive();
         try {
-            byte[] buf = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = jarStream.read(buf)) != -1) {
-                outStream.write(buf, 0, bytesRead);
+            final JarEntry entry = jar.getJarEntry(WEBSERVER_JAR.substring(1));
+            if ( entry == null ) {
+                throw new FileNotFoundException(WEBSERVER_JAR.substring(1) + " not found in " + archive);
+            }
+            final File jarFile;
+            if ( cacheDir != null ) {
+                jarFile = new File(cacheDir, "webserver.jar");
+                if ( ! isExtracted(entry, WEBSERVER_JAR, jarFile) ) {
+                    writeEntry(entry, WEBSERVER_JAR, jarFile);
+                    saveExtractIndex();
+                }
+                debug("webserver.jar cached at " + jarFile.getPath());
+            }
+            else {
+                // a STORED webserver.jar gets copied (channel to channel) without inflating
+                jarFile = File.createTempFile("webserver", ".jar");
+                jarFile.deleteOnExit();
+                writeEntry(entry, WEBSERVER_JAR, jarFile);
+                debug("webserver.jar extracted to " + jarFile.getPath());
             }
-        } finally {
-            jarStream.close();
-            outStream.close();
+            return jarFile.toURI().toURL();
+        }
+        finally {
+            closeArchive();
         }
-        debug("webserver.jar extracted to " + jarFile.getPath());
-        return jarFile.toURI().toURL();
     }
 
-    private Properties getWebserverProperties() throws Exception {
+    private Properties loadWebserverProperties() {
         Properties props = new Properties();
         try {
             InputStream is = getClass().getResourceAsStream(WEBSERVER_PROPERTIES);
             if ( is != null ) props.load(is);
         } catch (Exception e) { }
+        return props;
+    }
+
+    private Properties getWebserverProperties() throws Exception {
+        Properties props = loadWebserverProperties();
 
         String port = getSystemProperty("warbler.port", getENV("PORT"));
         port = port == null ? "8080" : port;
         String host = getSystemProperty("warbler.host", "0.0.0.0");
         String webserverConfig = getSystemProperty("warbler.webserver_config", getENV("WARBLER_WEBSERVER_CONFIG"));
-        String embeddedWebserverConfig = new URI("jar", entryPath(WEBSERVER_CONFIG), null).toURL().toString();
+        // a (supervised) worker's configuration accepts the PROXY protocol
+        final String config = getSystemProperty("warbler.worker") != null && isProxyProtocol(props) ?
+            props.getProperty("worker.config") : WEBSERVER_CONFIG;
+        String embeddedWebserverConfig = new URI("jar", entryPath(config), null).toURL().toString();
         webserverConfig = webserverConfig == null ? embeddedWebserverConfig : webserverConfig;
         for ( Map.Entry entry : props.entrySet() ) {
             String val = (String) entry.getValue();
@@ -163,17 +286,26 @@ public class WarMain extends JarMain {
         if (props.getProperty("props") != null) {
             String[] propsToSet = props.getProperty("props").split(",");
             for ( String key : propsToSet ) {
-                setSystemProperty(key, props.getProperty(key));
+                // e.g. java -Djetty.threads.max=50 -jar app.war overrides the packaged value
+                final String value = getSystemProperty(key);
+                if ( value != null ) props.setProperty(key, value);
+                else setSystemProperty(key, props.getProperty(key));
             }
         }
 
         return props;
     }
 
-    private void launchWebServer(URL jar) throws Exception {
-        URLClassLoader loader = new URLClassLoader(new URL[] {jar});
+    private void launchWebServer(final ClassLoader loader) throws Exception {
         Thread.currentThread().setContextClassLoader(loader);
-        Properties props = getWebserverProperties();
+        final Properties props;
+        final StartupProfile.Phase phase = beginPhase("getWebserverProperties");
+        try {
+            props = getWebserverProperties();
+        }
+        finally {
+            endPhase(phase);
+        }
         String mainClass = props.getProperty("mainclass");
         if (mainClass == null) {
             throw new IllegalArgumentException("unknown webserver main class ("
@@ -187,7 +319,7 @@ public class WarMain extends JarMain {
         main.invoke(null, new Object[] { newArgs });
     }
 
-    private String[] launchWebServerArguments(Properties props) {
+    private String[] launchWebServerArguments(Properties props) throws Exception {
         String[] newArgs = args;
 
         if (props.getProperty("args") != null) {
@@ -199,15 +331,67 @@ public class WarMain extends JarMain {
             System.arraycopy(args, 0, newArgs, insertArgs.length, args.length);
         }
 
+        final String virtualConfig = props.getProperty("virtual_threads.config");
+        if ( virtualConfig != null ) {
+            if ( isVirtualThreads() ) {
+                final String config = new URI("jar", entryPath(virtualConfig), null).toURL().toString();
+                newArgs = insertConfigArgument(newArgs, config);
+            }
+            else {
+                debug("virtual threads not supported on Java " + getJavaVersion() + ", using a platform thread pool");
+            }
+        }
+
         return newArgs;
     }
 
+    /**
+     * Fails with a clear message, instead of a class version error, when the packaged
+     * webserver (e.g. Jetty 10) needs a newer Java version (<tt>java_version</tt>).
+     */
+    private void checkWebserverJavaVersion(final Properties props) {
+        final String required = props.getProperty("java_version");
+        if ( required == null ) return;
+        final int version = Integer.parseInt(required.trim());
+        if ( getJavaVersion() < version ) {
+            throw new IllegalStateException("the packaged webserver (" + props.getProperty("mainclass") +
+                ") requires Java " + version + "+ but is running on Java " + getJavaVersion() +
+                ", run with a newer java or package another webserver (config.webserver)");
+        }
+    }
+
+    /**
+     * Virtual threads (Java 21+) might be turned off using <tt>-Dwarbler.virtual_threads=false</tt>.
+     */
+    protected boolean isVirtualThreads() {
+        return getJavaVersion() >= 21 &&
+            Boolean.parseBoolean( getSystemProperty("warbler.virtual_threads", "true") );
+    }
+
+    // --config CONFIG placed after the last (Jetty) --config argument
+    private static String[] insertConfigArgument(final String[] args, final String config) {
+        int index = 0;
+        for ( int i = 0; i < args.length - 1; i++ ) {
+            if ( "--config".equals(args[i]) ) index = i + 2;
+        }
+        final List<String> newArgs = new ArrayList<String>(Arrays.asList(args));
+        newArgs.add(index, config);
+        newArgs.add(index, "--config");
+        return newArgs.toArray(new String[newArgs.size()]);
+    }
+
     // JarMain overrides to make WarMain "launchable"
     // e.g. java -jar rails.war -S rake db:migrate
 
     @Override
     protected String getExtractEntryPath(final JarEntry entry) {
-        final String name = entry.getName();
+        final String path = getEntryPath(entry.getName());
+        // lazy : the rest is loaded from the archive (uri:classloader:/WEB-INF)
+        if ( lazyExtract && ! isClassPathEntry(path) ) return null;
+        return path;
+    }
+
+    private static String getEntryPath(final String name) {
         final String start = "WEB-INF";
         if ( name.startsWith(start) ) {
             // WEB-INF/app/controllers/application_controller.rb ->
@@ -221,11 +405,16 @@ public class WarMain extends JarMain {
         return '/' + name;
     }
 
+    @Override
+    protected boolean isClassPathEntry(final String path) {
+        return path.endsWith(".jar") && path.startsWith("/lib/");
+    }
+
     @Override
     protected URL extractEntry(final JarEntry entry, final String path) throws Exception {
         // always extract but only return class-path entry URLs :
         final URL entryURL = super.extractEntry(entry, path);
-        return path.endsWith(".jar") && path.startsWith("/lib/") ? entryURL : null;
+        return isClassPathEntry(path) ? entryURL : null;
     }
 
     @Override
@@ -233,7 +422,7 @@ public class WarMain extends JarMain {
         final Object scriptingContainer = newScriptingContainer(jars);
 
         invokeMethod(scriptingContainer, "setArgv", (Object) executableArgv);
-        invokeMethod(scriptingContainer, "setCurrentDirectory", extractRoot.getAbsolutePath());
+        invokeMethod(scriptingContainer, "setCurrentDirectory", applicationRoot());
         initJRubyScriptingEnv(scriptingContainer);
 
         final Object provider = invokeMethod(scriptingContainer, "getProvider");
@@ -243,7 +432,14 @@ public class WarMain extends JarMain {
 
         final CharSequence execScriptEnvPre = executableScriptEnvPrefix();
 
-        final String executablePath = locateExecutable(scriptingContainer, execScriptEnvPre);
+        final String executablePath;
+        StartupProfile.Phase phase = beginPhase("locateExecutable");
+        try {
+            executablePath = locateExecutable(scriptingContainer, execScriptEnvPre);
+        }
+        finally {
+            endPhase(phase);
+        }
         if ( executablePath == null ) {
             throw new IllegalStateException("failed to locate gem executable: '" + executable + "'");
         }
@@ -260,10 +456,17 @@ public class WarMain extends JarMain {
 
         debug("invoking " + executablePath + " with: " + Arrays.toString(executableArgv));
 
-        Object outcome = invokeMethod(runtime, "runFromMain",
-                new Class[] { InputStream.class, String.class },
-                executableInput, executablePath
-        );
+        final Object outcome;
+        phase = beginPhase("runFromMain");
+        try {
+            outcome = invokeMethod(runtime, "runFromMain",
+                    new Class[] { InputStream.class, String.class },
+                    executableInput, executablePath
+            );
+        }
+        finally {
+            endPhase(phase);
+        }
         return ( outcome instanceof Number ) ? ( (Number) outcome ).intValue() : 0;
     }
 
@@ -272,9 +475,9 @@ public class WarMain extends JarMain {
         if ( executable == null ) {
             throw new IllegalStateException("no executable");
         }
-        final File exec = new File(extractRoot, executable);
-        if ( exec.exists() ) {
-            return exec.getAbsolutePath();
+        final String exec = findApplicationExecutable();
+        if ( exec != null ) {
+            return exec;
         }
         else {
             final String script = locateExecutableScript(executable, executableScriptEnvPrefix());
@@ -287,19 +490,68 @@ public class WarMain extends JarMain {
         if ( executable == null ) {
             throw new IllegalStateException("no executable");
         }
+        final String exec = findApplicationExecutable();
+        if ( exec != null ) {
+            return exec;
+        }
+        final String gemExec = findGemExecutable();
+        if ( gemExec != null ) { // no need to look the executable up within gemspecs
+            invokeMethod(scriptingContainer, "runScriptlet", bundlerSetupScript(envPreScript));
+            return gemExec;
+        }
+        final String script = locateExecutableScript(executable, envPreScript);
+        return (String) invokeMethod(scriptingContainer, "runScriptlet", script);
+    }
+
+    /**
+     * @return the application (WEB-INF) root, extracted or within the archive
+     */
+    protected String applicationRoot() {
+        return lazyExtract ? "uri:classloader:/WEB-INF" : extractRoot.getAbsolutePath();
+    }
+
+    /**
+     * @return path of the executable (when part of the application), or null
+     */
+    private String findApplicationExecutable() {
+        if ( lazyExtract ) {
+            final String name = executable.startsWith("./") ? executable.substring(2) : executable;
+            // reverse of getExtractEntryPath e.g. bin/rake -> WEB-INF/bin/rake
+            final String[] entries = name.indexOf('/') == -1 ?
+                new String[] { "WEB-INF/" + name } : new String[] { "WEB-INF/" + name, name };
+            for ( final String entry : entries ) {
+                if ( getClass().getResource('/' + entry) != null ) {
+                    return "uri:classloader:/" + entry;
+                }
+            }
+            return null;
+        }
         final File exec = new File(extractRoot, executable);
+        return exec.exists() ? exec.getAbsolutePath() : null;
+    }
+
+    /**
+     * @return path of a gem executable as indexed (in META-INF/warbler.properties)
+     * when the archive got built, or null (not indexed or not found)
+     */
+    private String findGemExecutable() {
+        final String entry = getLauncherProperties().getProperty("executable." + executable);
+        if ( entry == null ) return null;
+        if ( lazyExtract ) {
+            return getClass().getResource('/' + entry) != null ? "uri:classloader:/" + entry : null;
+        }
+        final File exec = new File(extractRoot, getEntryPath(entry));
         if ( exec.exists() ) {
+            debug("found indexed executable: " + exec);
             return exec.getAbsolutePath();
         }
-        else {
-            final String script = locateExecutableScript(executable, envPreScript);
-            return (String) invokeMethod(scriptingContainer, "runScriptlet", script);
-        }
+        return null;
     }
 
     protected CharSequence executableScriptEnvPrefix() {
-        final String gemsDir = new File(extractRoot, "gems").getAbsolutePath();
-        final String gemfile = new File(extractRoot, "Gemfile").getAbsolutePath();
+        final String root = applicationRoot();
+        final String gemsDir = lazyExtract ? root + "/gems" : new File(root, "gems").getAbsolutePath();
+        final String gemfile = lazyExtract ? root + "/Gemfile" : new File(root, "Gemfile").getAbsolutePath();
         debug("setting GEM_HOME to " + gemsDir);
         debug("... and BUNDLE_GEMFILE to " + gemfile);
 
@@ -313,13 +565,7 @@ public class WarMain extends JarMain {
         return ( envPreScript == null ? "" : envPreScript + " \n" ) +
         "begin\n" + // locate the executable within gemspecs :
         "  require 'rubygems' unless defined?(Gem) \n" +
-          "  begin\n" + // add bundled gems to load path :
-          "    require 'bundler' \n" +
-          "  rescue LoadError\n" + // bundler not used
-          "  else\n" +
-          "    env = ENV['RAILS_ENV'] || ENV['RACK_ENV'] \n" + // init.rb sets ENV['RAILS_ENV'] ||= ...
-          "    env ? Bundler.setup(:default, env) : Bundler.setup(:default) \n" +
-          "  end if ENV_JAVA['warbler.bundler.setup'] != 'false' \n" + // java -Dwarbler.bundler.setup=false -jar my.war -S pry
+        BUNDLER_SETUP +
         "  exec = '"+ executable +"' \n" +
         "  spec = Gem::Specification.find { |s| s.executables.include?(exec) } \n" +
         "  spec ? spec.bin_file(exec) : nil \n" +
@@ -329,6 +575,25 @@ public class WarMain extends JarMain {
         "end";
     }
 
+    protected String bundlerSetupScript(final CharSequence envPreScript) {
+        return ( envPreScript == null ? "" : envPreScript + " \n" ) +
+        "begin\n" +
+        BUNDLER_SETUP +
+        "rescue SystemExit => e\n" +
+        "  e.status\n" +
+        "end";
+    }
+
+    private static final String BUNDLER_SETUP =
+        "  begin\n" + // add bundled gems to load path :
+        "    require 'bundler' \n" +
+        "  rescue LoadError\n" + // bundler not used
+        "  else\n" +
+        "    env = ENV['RAILS_ENV'] || ENV['RACK_ENV'] \n" + // init.rb sets ENV['RAILS_ENV'] ||= ...
+        "    env ? Bundler.setup(:default, env) : Bundler.setup(:default) \n" +
+        "  end if ENV_JAVA['warbler.bundler.setup'] != 'false' && \n" + // java -Dwarbler.bundler.setup=false -jar my.war -S pry
+        "    ! $LOADED_FEATURES.any? { |f| f.end_with?('/.bundle/standalone/bundler/setup.rb') } \n"; // standalone (frozen) load path
+
     protected void initJRubyScriptingEnv(Object scriptingContainer) throws Exception {
         // for some reason, the container needs to run a scriptlet in order for it
         // to be able to find the gem executables later
@@ -337,12 +602,89 @@ public class WarMain extends JarMain {
         invokeMethod(scriptingContainer, "setHomeDirectory", "uri:classloader:/META-INF/jruby.home");
     }
 
+    /**
+     * @return number of worker JVMs (<tt>warbler.workers</tt>) to run the webserver
+     * in (0 or less meaning the number of processors), 1 runs it in this JVM
+     */
+    protected int getWorkers() {
+        final String workers = getSystemProperty("warbler.workers");
+        if ( workers == null ) return 1;
+        try {
+            final int count = Integer.parseInt(workers.trim());
+            return count <= 0 ? Runtime.getRuntime().availableProcessors() : count;
+        }
+        catch (NumberFormatException e) {
+            warn("invalid warbler.workers value: " + workers);
+            return 1;
+        }
+    }
+
+    /**
+     * Whether the supervisor passes client addresses to workers using the PROXY
+     * protocol, requires the (packaged) webserver configuration for workers
+     * (<tt>worker.config</tt>) and might be turned off using <tt>-Dwarbler.proxy_protocol=false</tt>.
+     */
+    private boolean isProxyProtocol(final Properties props) {
+        return props.getProperty("worker.config") != null &&
+            getSystemProperty("warbler.webserver_config", getENV("WARBLER_WEBSERVER_CONFIG")) == null &&
+            Boolean.parseBoolean(getSystemProperty("warbler.proxy_protocol", "true"));
+    }
+
+    /**
+     * @return maximum number of connections the supervisor proxies concurrently
+     * (<tt>warbler.max_connections</tt>), more wait to be accepted
+     */
+    protected int getMaxConnections() {
+        final String connections = getSystemProperty("warbler.max_connections");
+        if ( connections == null ) return 512;
+        try {
+            return Math.max(1, Integer.parseInt(connections.trim()));
+        }
+        catch (NumberFormatException e) {
+            warn("invalid warbler.max_connections value: " + connections);
+            return 512;
+        }
+    }
+
+    @Override
+    protected boolean isRelaunch() {
+        // commands forwarded to a daemon (that accepted the connection) do not need another JVM
+        if ( executable != null && isDaemonClient() && getSystemProperty("warbler.relaunched") == null ) {
+            daemonSocket = connectDaemon();
+            if ( daemonSocket != null ) return false;
+        }
+        return super.isRelaunch();
+    }
+
     @Override
     protected int start() throws Exception {
         if ( executable == null ) {
+            if ( Boolean.parseBoolean(getSystemProperty("warbler.daemon", "false")) ) {
+                daemon = new Daemon();
+                return daemon.run();
+            }
+            checkWebserverJavaVersion(loadWebserverProperties());
+            final int workers = getWorkers();
+            if ( workers > 1 ) {
+                supervisor = new Supervisor(workers);
+                return supervisor.run();
+            }
             try {
-                URL server = extractWebserver();
-                launchWebServer(server);
+                final ClassLoader server;
+                StartupProfile.Phase phase = beginPhase("extractWebserver");
+                try {
+                    server = webserverClassLoader();
+                }
+                finally {
+                    endPhase(phase);
+                }
+                phase = beginPhase("launchWebServer"); // usually still running at exit
+                try {
+                    launchWebServer(server);
+                }
+                finally {
+                    endPhase(phase);
+                }
             }
             catch (FileNotFoundException e) {
                 final String msg = e.getMessage();
@@ -354,15 +696,740 @@ public class WarMain extends JarMain {
             }
             return 0;
         }
+        if ( daemonSocket != null ) return forwardToDaemon(daemonSocket);
         return super.start();
     }
 
+    @Override
+    protected URL[] relaunchClassPath() throws Exception {
+        if ( executable == null ) return new URL[] { extractWebserver() };
+        return super.relaunchClassPath();
+    }
+
     @Override
     public void run() {
+        if ( supervisor != null ) supervisor.stop();
+        if ( daemon != null ) daemon.stop();
         super.run();
+        if ( webserverLoader != null ) webserverLoader.close();
+        if ( webrootLock != null ) {
+            try { webrootLock.close(); } catch (IOException e) { debug(e); }
+        }
         if ( webroot != null ) delete(webroot.getParentFile());
     }
 
+    /**
+     * Runs the webserver in worker JVMs, each listening on a (free) loopback port,
+     * connections to the configured port are balanced across workers (round-robin).
+     * Workers share the extraction cache and are restarted when they die. With a
+     * webserver configuration accepting it, the client address gets passed on
+     * using the PROXY protocol (otherwise workers see a loopback address).
+     */
+    final class Supervisor {
+
+        private final String host;
+        private final int port;
+        private final AtomicIntegerArray workerPorts;
+        private final Process[] workers;
+        private final ExecutorService executor;
+        private final Semaphore connections;
+        private final AtomicInteger nextWorker = new AtomicInteger();
+        private final boolean proxyProtocol;
+
+        private volatile boolean stopped;
+        private volatile ServerSocket serverSocket;
+        private String extractCache;
+
+        Supervisor(final int count) {
+            final String port = getSystemProperty("warbler.port", getENV("PORT"));
+            this.port = port == null ? 8080 : Integer.parseInt(port);
+            this.host = getSystemProperty("warbler.host", "0.0.0.0");
+            this.workerPorts = new AtomicIntegerArray(count);
+            this.workers = new Process[count];
+            final int maxConnections = getMaxConnections();
+            this.connections = new Semaphore(maxConnections);
+            // a thread supervising each worker and two for each (proxied) connection
+            this.executor = new ThreadPoolExecutor(count, count + 2 * maxConnections,
+                60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(final Runnable task) {
+                    final Thread thread = new Thread(task, "warbler-supervisor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.proxyProtocol = isProxyProtocol(loadWebserverProperties());
+        }
+
+        int run() throws Exception {
+            extractCache = getSystemProperty("warbler.extract_cache", getENV("WARBLER_EXTRACT_CACHE"));
+            if ( extractCache == null ) { // shared by workers, deleted on exit
+                extractRoot = createExtractRoot();
+                extractCache = extractRoot.getAbsolutePath();
+            }
+
+            final ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(host, port), 128);
+            this.serverSocket = serverSocket;
+
+            for ( int i = 0; i < workers.length; i++ ) {
+                workers[i] = startWorker(i);
+                final int worker = i;
+                executor.execute(new Runnable() {
+                    public void run() { superviseWorker(worker); }
+                });
+            }
+            debug("balancing " + host + ":" + port + " across workers on ports: " + workerPorts);
+
+            while ( ! stopped ) {
+                try {
+                    connections.acquire(); // (too) many connections wait in the backlog
+                }
+                catch (InterruptedException e) { break; }
+                final Socket client;
+                try {
+                    client = serverSocket.accept();
+                }
+                catch (IOException e) {
+                    connections.release();
+                    if ( stopped ) break;
+                    error(e); continue;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() { proxy(client); }
+                    });
+                }
+                catch (RejectedExecutionException e) { // stopped
+                    close(client); connections.release();
+                }
+            }
+            return 0;
+        }
+
+        private Process startWorker(final int worker) throws IOException {
+            // probed right before (re-)starting, a worker failing to bind gets restarted on another port
+            final int workerPort = freePort();
+            workerPorts.set(worker, workerPort);
+            final List<String> command = javaCommand();
+            for ( Iterator<String> it = command.iterator(); it.hasNext(); ) {
+                final String arg = it.next(); // workers would race dumping the same archive
+                if ( arg.startsWith("-XX:ArchiveClassesAtExit") || arg.startsWith("-XX:SharedArchiveFile") ||
+                     arg.equals("-XX:+AutoCreateSharedArchive") ) it.remove();
+            }
+            command.add("-Dwarbler.relaunched=true");
+            command.add("-Dwarbler.workers=1");
+            command.add("-Dwarbler.worker=" + worker);
+            command.add("-Dwarbler.host=127.0.0.1");
+            command.add("-Dwarbler.port=" + workerPort);
+            command.add("-Dwarbler.extract_cache=" + extractCache);
+            command.add("-jar"); command.add(archive);
+            command.addAll(Arrays.asList(args));
+            debug("starting worker " + worker + ": " + command);
+            return new ProcessBuilder(command).inheritIO().start();
+        }
+
+        private int freePort() throws IOException {
+            final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            try {
+                return socket.getLocalPort();
+            }
+            finally {
+                socket.close();
+            }
+        }
+
+        private void superviseWorker(final int worker) {
+            long backoff = 500;
+            while ( ! stopped ) {
+                final long started = System.currentTimeMillis();
+                final int status;
+                try {
+                    status = workers[worker].waitFor();
+                }
+                catch (InterruptedException e) { return; }
+                if ( stopped ) return;
+                // back-off when a worker keeps dying on start-up
+                backoff = System.currentTimeMillis() - started < 30 * 1000 ? Math.min(backoff * 2, 30 * 1000) : 1000;
+                warn("worker " + worker + " exited (" + status + "), restarting in " + backoff + "ms");
+                try {
+                    Thread.sleep(backoff);
+                    synchronized (this) {
+                        if ( ! stopped ) workers[worker] = startWorker(worker);
+                    }
+                }
+                catch (InterruptedException e) { return; }
+                catch (IOException e) { // retried (waiting on the exited worker returns right away)
+                    error("failed to restart worker " + worker, e);
+                }
+            }
+        }
+
+        private void proxy(final Socket client) {
+            final Socket upstream = connectWorker();
+            if ( upstream == null ) {
+                warn("no worker available for " + client.getRemoteSocketAddress());
+                close(client); connections.release(); return;
+            }
+            final AtomicInteger open = new AtomicInteger(2);
+            try {
+                client.setTcpNoDelay(true);
+                if ( proxyProtocol ) {
+                    upstream.getOutputStream().write(proxyHeader(client).getBytes("US-ASCII"));
+                }
+                executor.execute(new Runnable() {
+                    public void run() { transfer(client, upstream, open); }
+                });
+            }
+            catch (Exception e) { // IOException or RejectedExecutionException (stopped)
+                debug("failed proxying " + client.getRemoteSocketAddress() + ": " + e);
+                close(client); close(upstream); connections.release(); return;
+            }
+            transfer(upstream, client, open);
+        }
+
+        // PROXY protocol (version 1) header e.g. "PROXY TCP4 192.168.0.1 192.168.0.11 56324 8080\r\n"
+        private String proxyHeader(final Socket client) {
+            final InetAddress source = client.getInetAddress();
+            final InetAddress target = client.getLocalAddress();
+            final String family;
+            if ( source instanceof Inet4Address && target instanceof Inet4Address ) family = "TCP4";
+            else if ( source instanceof Inet6Address && target instanceof Inet6Address ) family = "TCP6";
+            else return "PROXY UNKNOWN\r\n";
+            return "PROXY " + family + ' ' + source.getHostAddress() + ' ' + target.getHostAddress() +
+                ' ' + client.getPort() + ' ' + client.getLocalPort() + "\r\n";
+        }
+
+        /**
+         * Connects to the next (listening) worker, waits while workers are booting.
+         */
+        private Socket connectWorker() {
+            final long deadline = System.currentTimeMillis() + 30 * 1000;
+            while ( ! stopped ) {
+                for ( int i = 0; i < workerPorts.length(); i++ ) {
+                    final int worker = ( nextWorker.getAndIncrement() & Integer.MAX_VALUE ) % workerPorts.length();
+                    final Socket socket = new Socket();
+                    try {
+                        socket.setTcpNoDelay(true);
+                        socket.connect(new InetSocketAddress("127.0.0.1", workerPorts.get(worker)), 1000);
+                        return socket;
+                    }
+                    catch (IOException e) { close(socket); } // not (yet) listening
+                }
+                if ( System.currentTimeMillis() > deadline ) break;
+                try { Thread.sleep(100); }
+                catch (InterruptedException e) { break; }
+            }
+            return null;
+        }
+
+        private void transfer(final Socket from, final Socket to, final AtomicInteger open) {
+            final byte[] buf = new byte[16384];
+            try {
+                final InputStream in = from.getInputStream();
+                final OutputStream out = to.getOutputStream();
+                int bytesRead;
+                while ((bytesRead = in.read(buf)) != -1) {
+                    out.write(buf, 0, bytesRead);
+                }
+                to.shutdownOutput();
+            }
+            catch (IOException e) {
+                close(from); close(to);
+            }
+            finally {
+                if ( open.decrementAndGet() == 0 ) {
+                    close(from); close(to);
+                    connections.release();
+                }
+            }
+        }
+
+        private void close(final Socket socket) {
+            try { socket.close(); } catch (IOException e) { }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            final ServerSocket serverSocket = this.serverSocket;
+            if ( serverSocket != null ) {
+                try { serverSocket.close(); } catch (IOException e) { }
+            }
+            for ( Process worker : workers ) {
+                if ( worker != null ) worker.destroy();
+            }
+            for ( Process worker : workers ) {
+                if ( worker == null ) continue;
+                try { worker.waitFor(); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+            }
+            executor.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Whether (-S) commands get forwarded to a running daemon, an opt-in using
+     * <tt>-Dwarbler.daemon=true</tt> (as when starting the daemon).
+     */
+    private boolean isDaemonClient() {
+        return Boolean.parseBoolean(getSystemProperty("warbler.daemon", "false"));
+    }
+
+    /**
+     * Whether the client's environment gets forwarded to the daemon (commands
+     * run with the daemon's environment unless <tt>-Dwarbler.daemon.env=true</tt>).
+     */
+    private boolean isDaemonEnv() {
+        return Boolean.parseBoolean(getSystemProperty("warbler.daemon.env", "false"));
+    }
+
+    // e.g. /tmp/warbler-user/app.war-3f1a2b-4f8d8-1a14e595657.daemon
+    private File daemonStateFile() {
+        final String user = getSystemProperty("user.name", "");
+        final File dir = new File(getSystemProperty("java.io.tmpdir"), "warbler-" + user);
+        return new File(dir, archiveKey() + ".daemon");
+    }
+
+    /**
+     * @return true if the file (not a link) is owned by the current user and not
+     * accessible by the group or others, always true without POSIX permissions
+     */
+    private boolean isOwnerOnly(final File file) throws IOException {
+        final PosixFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+            PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if ( view == null ) return true; // e.g. Windows (java.io.tmpdir is per user)
+        final PosixFileAttributes attrs = view.readAttributes();
+        if ( attrs.isSymbolicLink() ) return false;
+        if ( ! attrs.owner().getName().equals(getSystemProperty("user.name")) ) return false;
+        for ( PosixFilePermission permission : attrs.permissions() ) {
+            switch ( permission ) {
+                case OWNER_READ: case OWNER_WRITE: case OWNER_EXECUTE: continue;
+                default: return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the (port and token) state of a daemon running this archive or null
+     */
+    private Properties readDaemonState() {
+        final File stateFile = daemonStateFile();
+        if ( ! stateFile.isFile() ) return null;
+        final Properties state = new Properties();
+        try {
+            if ( ! isOwnerOnly(stateFile.getParentFile()) || ! isOwnerOnly(stateFile) ) {
+                warn("ignoring daemon state " + stateFile + " (not owned by the current user or accessible by others)");
+                return null;
+            }
+            final InputStream in = new FileInputStream(stateFile);
+            try { state.load(in); }
+            finally { in.close(); }
+        }
+        catch (IOException e) {
+            debug("failed reading daemon state " + stateFile + ": " + e);
+            return null;
+        }
+        return state.getProperty("port") == null ? null : state;
+    }
+
+    /**
+     * Connects to a daemon running this archive, the state of a daemon that is
+     * not reachable (or does not accept the token) gets deleted.
+     * @return the socket once the daemon accepted the token, null otherwise
+     */
+    private Socket connectDaemon() {
+        final Properties state = readDaemonState();
+        if ( state == null ) return null;
+
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", Integer.parseInt(state.getProperty("port"))), 1000);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(5000);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeString(out, state.getProperty("token", ""));
+            out.flush();
+            if ( socket.getInputStream().read() != ACCEPT_FRAME ) {
+                throw new EOFException("token not accepted");
+            }
+            socket.setSoTimeout(0);
+            debug("forwarding command to daemon on port " + socket.getPort());
+            return socket;
+        }
+        catch (Exception e) { // IOException or a NumberFormatException (port)
+            debug("daemon not reachable (" + e + "), running command");
+            try { socket.close(); } catch (IOException ex) { }
+            final Properties current = readDaemonState(); // unless another daemon took over
+            if ( current != null && state.getProperty("token", "").equals(current.getProperty("token")) ) {
+                daemonStateFile().delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Forwards the command (arguments, standard input and the environment when
+     * opted-in) to a daemon and writes its (standard) output and error output as received.
+     * @return the command's exit status
+     */
+    private int forwardToDaemon(final Socket socket) throws IOException {
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(args.length);
+            for ( String arg : args ) writeString(out, arg);
+            if ( isDaemonEnv() ) {
+                final Map<String, String> env = System.getenv();
+                out.writeInt(env.size());
+                for ( Map.Entry<String, String> entry : env.entrySet() ) {
+                    writeString(out, entry.getKey()); writeString(out, entry.getValue());
+                }
+            }
+            else {
+                out.writeInt(-1); // the command runs with the daemon's environment
+            }
+            out.flush();
+
+            final Thread input = new Thread(new Runnable() {
+                public void run() { forwardInput(System.in, out); }
+            }, "warbler-daemon-input");
+            input.setDaemon(true);
+            input.start();
+
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] buf = new byte[8192];
+            while (true) {
+                final int type = in.read();
+                if ( type == -1 ) throw new EOFException("daemon closed the connection");
+                if ( type == EXIT_FRAME ) return in.readInt();
+                final int length = in.readInt();
+                if ( length > buf.length ) buf = new byte[length];
+                in.readFully(buf, 0, length);
+                final PrintStream stream = type == ERROR_FRAME ? System.err : System.out;
+                stream.write(buf, 0, length);
+                stream.flush();
+            }
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    // length-prefixed chunks of input, -1 marks the end
+    private static void forwardInput(final InputStream input, final DataOutputStream out) {
+        final byte[] buf = new byte[8192];
+        try {
+            int bytesRead;
+            while ((bytesRead = input.read(buf)) != -1) {
+                out.writeInt(bytesRead);
+                out.write(buf, 0, bytesRead);
+                out.flush();
+            }
+            out.writeInt(-1);
+            out.flush();
+        }
+        catch (IOException e) { } // connection closed
+    }
+
+    private static void writeString(final DataOutputStream out, final String str) throws IOException {
+        final byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static final int OUTPUT_FRAME = 1;
+    private static final int ERROR_FRAME = 2;
+    private static final int EXIT_FRAME = 3;
+    private static final int ACCEPT_FRAME = 4; // token accepted (no length)
+
+    /**
+     * Writes each chunk of output as a (type, length, bytes) frame.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final int type;
+
+        FrameOutputStream(final DataOutputStream out, final int type) {
+            this.out = out; this.type = type;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if ( len == 0 ) return;
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+
+    }
+
+    /**
+     * Serves (-S) commands, started using <tt>java -Dwarbler.daemon=true -jar app.war</tt>.
+     * The archive is extracted once and each command runs in a fresh scripting
+     * container, which has been booted while waiting for the command. Commands
+     * (<tt>java -Dwarbler.daemon=true -jar app.war -S rake ...</tt>) find the daemon
+     * using a state file holding the loopback port and an access token, both the
+     * file and its (java.io.tmpdir/warbler-user) directory are accessible by the
+     * owner only. The client's environment is only forwarded with
+     * <tt>-Dwarbler.daemon.env=true</tt>.
+     *
+     * NOTE: JRuby options (arguments before -S) can not be applied to a booted
+     * runtime and STDOUT/STDERR (as opposed to $stdout/$stderr) stay the daemon's.
+     */
+    final class Daemon {
+
+        private final File stateFile = daemonStateFile();
+        private final ExecutorService executor;
+        private String token;
+        private Future<Object> spareContainer;
+
+        private volatile boolean stopped;
+        private volatile ServerSocket serverSocket;
+
+        Daemon() {
+            this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(final Runnable task) {
+                    final Thread thread = new Thread(task, "warbler-daemon");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        int run() throws Exception {
+            classLoader = newClassLoader(extractArchive());
+            spareContainer = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception { return bootContainer(); }
+            });
+
+            final byte[] bytes = new byte[16];
+            new SecureRandom().nextBytes(bytes);
+            final StringBuilder token = new StringBuilder(32);
+            for ( byte b : bytes ) token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            this.token = token.toString();
+
+            final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.serverSocket = serverSocket;
+            writeState(serverSocket.getLocalPort());
+            System.out.println("warbler daemon for " + archive + " listening on port " + serverSocket.getLocalPort());
+
+            while ( ! stopped ) {
+                final Socket client;
+                try {
+                    client = serverSocket.accept();
+                }
+                catch (IOException e) {
+                    if ( stopped ) break;
+                    error(e); continue;
+                }
+                executor.execute(new Runnable() {
+                    public void run() { serve(client); }
+                });
+            }
+            return 0;
+        }
+
+        private void writeState(final int port) throws IOException {
+            final Path dir = stateFile.getParentFile().toPath();
+            final boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if ( ! Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) ) {
+                try {
+                    if ( posix ) {
+                        Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                    }
+                    else {
+                        Files.createDirectory(dir);
+                    }
+                }
+                catch (FileAlreadyExistsException e) { } // checked below
+            }
+            if ( ! isOwnerOnly(dir.toFile()) ) {
+                throw new IOException("daemon state directory " + dir + " is not owned by the current user or accessible by others");
+            }
+            // created owner-only (no window where others could read the token)
+            final Path tmpFile = posix ?
+                Files.createTempFile(dir, "warbler", ".daemon", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))) :
+                Files.createTempFile(dir, "warbler", ".daemon");
+            final Properties state = new Properties();
+            state.setProperty("port", Integer.toString(port));
+            state.setProperty("token", token);
+            final OutputStream out = Files.newOutputStream(tmpFile);
+            try { state.store(out, archive); }
+            finally { out.close(); }
+            Files.move(tmpFile, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            debug("daemon state written to " + stateFile);
+        }
+
+        private Object bootContainer() throws Exception {
+            final Class<?> scope = Class.forName("org.jruby.embed.LocalContextScope", true, classLoader);
+            final Class<?> klass = Class.forName("org.jruby.embed.ScriptingContainer", true, classLoader);
+            @SuppressWarnings("unchecked")
+            final Object singleThread = Enum.valueOf((Class) scope, "SINGLETHREAD"); // a runtime per container
+            final Object container = klass.getConstructor(scope).newInstance(singleThread);
+            invokeMethod(container, "setArgv", (Object) new String[0]);
+            invokeMethod(container, "setClassLoader", new Class[] { ClassLoader.class }, classLoader);
+            invokeMethod(container, "setCurrentDirectory", applicationRoot());
+            // as with launchJRuby, ENV changes (a forwarded environment) stay within this runtime
+            final Object provider = invokeMethod(container, "getProvider");
+            final Object rubyInstanceConfig = invokeMethod(provider, "getRubyInstanceConfig");
+            invokeMethod(rubyInstanceConfig, "setUpdateNativeENVEnabled", new Class[] { Boolean.TYPE }, false);
+            initJRubyScriptingEnv(container); // boots the runtime
+            return container;
+        }
+
+        private synchronized Object takeContainer() throws Exception {
+            final Future<Object> container = spareContainer;
+            spareContainer = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception { return bootContainer(); }
+            });
+            try {
+                return container.get();
+            }
+            catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        private void serve(final Socket client) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+                if ( ! MessageDigest.isEqual(token.getBytes("UTF-8"), readString(in).getBytes("UTF-8")) ) {
+                    warn("daemon: invalid token from " + client.getRemoteSocketAddress());
+                    return;
+                }
+                out.writeByte(ACCEPT_FRAME);
+                out.flush();
+                final String[] argv = new String[in.readInt()];
+                for ( int i = 0; i < argv.length; i++ ) argv[i] = readString(in);
+                final int envSize = in.readInt(); // -1 when not forwarded
+                final Map<String, String> env = envSize < 0 ? null : new HashMap<String, String>();
+                for ( int i = envSize; i > 0; i-- ) env.put(readString(in), readString(in));
+
+                final PipedInputStream stdin = new PipedInputStream(8192);
+                final PipedOutputStream stdinPipe = new PipedOutputStream(stdin);
+                executor.execute(new Runnable() {
+                    public void run() { receiveInput(in, stdinPipe); }
+                });
+                final PrintStream stdout = new PrintStream(new FrameOutputStream(out, OUTPUT_FRAME), true);
+                final PrintStream stderr = new PrintStream(new FrameOutputStream(out, ERROR_FRAME), true);
+
+                int status;
+                try {
+                    status = runCommand(argv, env, stdin, stdout, stderr);
+                }
+                catch (Exception e) {
+                    stderr.println(e.toString());
+                    if ( isDebug() ) e.printStackTrace(stderr);
+                    status = 1;
+                }
+                synchronized (out) {
+                    out.writeByte(EXIT_FRAME);
+                    out.writeInt(status);
+                    out.flush();
+                }
+            }
+            catch (IOException e) {
+                debug("daemon: " + e); // client gone
+            }
+            finally {
+                try { client.close(); } catch (IOException e) { }
+            }
+        }
+
+        private void receiveInput(final DataInputStream in, final PipedOutputStream pipe) {
+            try {
+                byte[] buf = new byte[8192];
+                int length;
+                while ((length = in.readInt()) >= 0) {
+                    if ( length > buf.length ) buf = new byte[length];
+                    in.readFully(buf, 0, length);
+                    pipe.write(buf, 0, length);
+                }
+            }
+            catch (IOException e) { } // connection closed or command done
+            finally {
+                try { pipe.close(); } catch (IOException e) { }
+            }
+        }
+
+        private int runCommand(final String[] argv, final Map<String, String> env,
+            final InputStream stdin, final PrintStream stdout, final PrintStream stderr) throws Exception {
+            final WarMain command = new WarMain(argv, false);
+            if ( command.executable == null ) {
+                throw new IllegalArgumentException("missing -S executable (daemon only runs commands)");
+            }
+            if ( command.arguments.length > 0 ) {
+                debug("daemon: ignoring JRuby arguments " + Arrays.toString(command.arguments));
+            }
+            command.extractRoot = extractRoot;
+
+            final Object container = takeContainer();
+            try {
+                final Class[] putSignature = new Class[] { String.class, Object.class };
+                invokeMethod(container, "setInput", new Class[] { InputStream.class }, stdin);
+                invokeMethod(container, "setOutput", new Class[] { PrintStream.class }, stdout);
+                invokeMethod(container, "setError", new Class[] { PrintStream.class }, stderr);
+                invokeMethod(container, "put", putSignature, "$warbler_argv", Arrays.asList(command.executableArgv));
+                invokeMethod(container, "put", putSignature, "$warbler_env", env);
+                invokeMethod(container, "runScriptlet", "ARGV.replace($warbler_argv.to_a); ENV.replace($warbler_env.to_hash) if $warbler_env; nil");
+
+                final CharSequence envPreScript = command.executableScriptEnvPrefix();
+                final String executablePath = command.locateExecutable(container, envPreScript);
+                if ( executablePath == null ) {
+                    throw new IllegalStateException("failed to locate gem executable: '" + command.executable + "'");
+                }
+                debug("daemon: invoking " + executablePath + " with: " + Arrays.toString(command.executableArgv));
+                final Object outcome = invokeMethod(container, "runScriptlet", envPreScript + " \n" +
+                    "begin\n" +
+                    "  $0 = '" + executablePath.replace("\\", "\\\\").replace("'", "\\'") + "' \n" +
+                    "  load $0 \n" +
+                    "  0\n" +
+                    "rescue SystemExit => e\n" +
+                    "  e.status\n" +
+                    "rescue Exception => e\n" +
+                    "  $stderr.puts \"#{e.class}: #{e.message}\", *e.backtrace\n" +
+                    "  1\n" +
+                    "end");
+                return ( outcome instanceof Number ) ? ( (Number) outcome ).intValue() : 0;
+            }
+            finally {
+                invokeMethod(container, "terminate"); // at_exit hooks still write to the client
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            final ServerSocket serverSocket = this.serverSocket;
+            if ( serverSocket != null ) {
+                try { serverSocket.close(); } catch (IOException e) { }
+            }
+            final Properties state = readDaemonState(); // unless another daemon took over
+            if ( state != null && token != null && token.equals(state.getProperty("token")) ) {
+                stateFile.delete();
+            }
+            executor.shutdownNow();
+        }
+
+    }
+
     public static void main(String[] args) {
         doStart(new WarMain(args));
     }
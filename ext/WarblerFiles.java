@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2010-2012 Engine Yard, Inc.
+ * Copyright (c) 2007-2009 Sun Microsystems, Inc.
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * File discovery for archives : walks (application and gem) directories in
+ * parallel, the same files as a <code>dir/**&#47;*</code> glob would match
+ * (hidden files and directories skipped, directory symlinks followed).
+ */
+public class WarblerFiles {
+    public static void create(Ruby runtime) {
+        RubyModule task = runtime.getClassFromPath("Warbler::Jar");
+        task.defineAnnotatedMethods(WarblerFiles.class);
+    }
+
+    /**
+     * Finds files and directories under the given directories.
+     * @return a hash of each directory to (sorted) paths relative to it
+     */
+    @JRubyMethod
+    public static IRubyObject find_files(ThreadContext context, IRubyObject self, IRubyObject dirs) {
+        final Ruby runtime = context.runtime;
+        RubyArray array = dirs.convertToArray();
+        List<String> roots = new ArrayList<String>(array.getLength());
+        for (int i = 0; i < array.getLength(); i++) {
+            roots.add(array.entry(i).convertToString().getUnicodeValue());
+        }
+
+        final Map<String, List<String>> found;
+        try {
+            found = walk(roots, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            if (runtime.isDebug()) {
+                e.printStackTrace(runtime.getOut());
+            }
+            throw runtime.newIOErrorFromException(e);
+        }
+
+        RubyHash hash = RubyHash.newHash(runtime);
+        for (Map.Entry<String, List<String>> entry : found.entrySet()) {
+            RubyArray paths = RubyArray.newArray(runtime, entry.getValue().size());
+            for (String path : entry.getValue()) {
+                paths.append(runtime.newString(path));
+            }
+            hash.op_aset(context, runtime.newString(entry.getKey()), paths);
+        }
+        return hash;
+    }
+
+    static Map<String, List<String>> walk(List<String> roots, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "warbler-files");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // each root's top-level directories are walked concurrently
+            Map<String, List<Future<List<String>>>> walks = new LinkedHashMap<String, List<Future<List<String>>>>();
+            Map<String, List<String>> found = new LinkedHashMap<String, List<String>>();
+            for (String root : roots) {
+                if (walks.containsKey(root)) {
+                    continue;
+                }
+                List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+                List<String> paths = new ArrayList<String>();
+                final Path rootPath = Paths.get(root);
+                if (Files.isDirectory(rootPath)) {
+                    DirectoryStream<Path> children = Files.newDirectoryStream(rootPath);
+                    try {
+                        for (final Path child : children) {
+                            if (isHidden(child)) {
+                                continue;
+                            }
+                            if (Files.isDirectory(child)) {
+                                futures.add(executor.submit(new Callable<List<String>>() {
+                                    public List<String> call() throws IOException {
+                                        return walkTree(rootPath, child);
+                                    }
+                                }));
+                            } else {
+                                paths.add(relativePath(rootPath, child));
+                            }
+                        }
+                    } finally {
+                        children.close();
+                    }
+                }
+                walks.put(root, futures);
+                found.put(root, paths);
+            }
+            for (Map.Entry<String, List<Future<List<String>>>> walk : walks.entrySet()) {
+                List<String> paths = found.get(walk.getKey());
+                for (Future<List<String>> future : walk.getValue()) {
+                    paths.addAll(get(future));
+                }
+                Collections.sort(paths);
+            }
+            return found;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> walkTree(final Path root, final Path dir) throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+            new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                    if (!path.equals(dir) && isHidden(path)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    paths.add(relativePath(root, path));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (!isHidden(path)) {
+                        paths.add(relativePath(root, path));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE; // e.g. a symlink loop or unreadable
+                }
+            });
+        return paths;
+    }
+
+    private static List<String> get(Future<List<String>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    private static String relativePath(Path root, Path path) {
+        String relative = root.relativize(path).toString();
+        return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2010-2012 Engine Yard, Inc.
+ * Copyright (c) 2007-2009 Sun Microsystems, Inc.
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.FilterRegistration;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Health (readiness) check for executable wars, enabled by the
+ * <tt>warbler.health.path</tt> system property (set from webserver.properties).
+ *
+ * Declared as the first context listener, it maps itself as a filter for the
+ * health path ahead of the Rack filter. The path answers with the boot state
+ * as JSON (503 while the Rack application is booting or after it failed to
+ * boot). The response includes the time spent in each boot phase and basic
+ * runtime stats.
+ *
+ * Boot phases : <tt>launch</tt> (JVM start until the web application starts,
+ * including extraction and the web server start-up), <tt>webapp</tt> (context
+ * listeners, the Rack application boot) and <tt>runtimes</tt> (until pooled
+ * runtimes got initialized, as first observed by a health check).
+ */
+public class WarblerHealth implements ServletContextListener, Filter {
+
+    static final String PATH_PROPERTY = "warbler.health.path";
+
+    private static final String READY = "ready", BOOTING = "booting", FAILED = "failed";
+
+    private ServletContext context;
+    private volatile long webappStarted; // context initializing
+    private volatile long webappBooted; // filters are initialized after all context listeners
+    private volatile long ready; // first seen ready
+
+    public void contextInitialized(final ServletContextEvent event) {
+        final String path = System.getProperty(PATH_PROPERTY);
+        if ( path == null || path.length() == 0 ) return;
+
+        webappStarted = System.currentTimeMillis();
+        context = event.getServletContext();
+        final FilterRegistration.Dynamic filter = context.addFilter("WarblerHealth", this);
+        filter.setAsyncSupported(true);
+        filter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), false, path);
+        context.log("health check available at " + path);
+    }
+
+    public void contextDestroyed(final ServletContextEvent event) {
+        // nothing to do
+    }
+
+    public void init(final FilterConfig config) {
+        webappBooted = System.currentTimeMillis();
+    }
+
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        throws IOException, ServletException {
+        final String status = getStatus();
+        final HttpServletResponse httpResponse = (HttpServletResponse) response;
+        httpResponse.setStatus(status == READY ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        httpResponse.setHeader("Cache-Control", "no-cache, no-store");
+        httpResponse.setContentType("application/json");
+        httpResponse.setCharacterEncoding("UTF-8");
+        httpResponse.getWriter().write(toJSON(status));
+    }
+
+    public void destroy() {
+        // nothing to do
+    }
+
+    private String getStatus() {
+        if ( ready > 0 ) return READY;
+        final Object factory = context.getAttribute("rack.factory");
+        if ( isRackFailed(factory) ) return FAILED;
+        if ( webappBooted == 0 || ! isRackReady(factory) ) return BOOTING;
+        ready = System.currentTimeMillis();
+        return READY;
+    }
+
+    /**
+     * JRuby-Rack's application factory (decorator) keeps the error raised while
+     * booting the Rack application, it manages no applications in that case.
+     */
+    private static boolean isRackFailed(final Object factory) {
+        if ( factory == null ) return false; // not a (JRuby-Rack) Rack application
+        try {
+            final Method initError = factory.getClass().getMethod("getInitError");
+            return initError.invoke(factory) != null;
+        }
+        catch (Exception e) { // NoSuchMethodException
+            return false;
+        }
+    }
+
+    /**
+     * JRuby-Rack's application factory (pooling) might initialize runtimes in
+     * the background, ready once it manages (initialized) applications.
+     */
+    private static boolean isRackReady(final Object factory) {
+        if ( factory == null ) return true; // not a (JRuby-Rack) Rack application
+        try {
+            final Method managedApplications = factory.getClass().getMethod("getManagedApplications");
+            final Collection<?> applications = (Collection<?>) managedApplications.invoke(factory);
+            return applications == null || ! applications.isEmpty(); // null - not managed
+        }
+        catch (Exception e) { // NoSuchMethodException
+            return true;
+        }
+    }
+
+    private String toJSON(final String status) {
+        final boolean ready = status == READY;
+        final long jvmStarted = ManagementFactory.getRuntimeMXBean().getStartTime();
+        final long now = System.currentTimeMillis();
+
+        final StringBuilder json = new StringBuilder(512);
+        json.append("{\"status\":\"").append(status).append('"');
+        json.append(",\"uptime\":").append(now - jvmStarted);
+        if ( ready ) json.append(",\"timeToReady\":").append(this.ready - jvmStarted);
+
+        json.append(",\"phases\":{");
+        json.append("\"launch\":").append(webappStarted - jvmStarted);
+        json.append(",\"webapp\":").append(webappBooted == 0 ? now - webappStarted : webappBooted - webappStarted);
+        if ( webappBooted > 0 ) {
+            json.append(",\"runtimes\":").append((ready ? this.ready : now) - webappBooted);
+        }
+        json.append('}');
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCount = 0, gcTime = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        json.append(",\"runtime\":{");
+        json.append("\"heapUsed\":").append(memory.getHeapMemoryUsage().getUsed());
+        json.append(",\"heapCommitted\":").append(memory.getHeapMemoryUsage().getCommitted());
+        json.append(",\"heapMax\":").append(memory.getHeapMemoryUsage().getMax());
+        json.append(",\"nonHeapUsed\":").append(memory.getNonHeapMemoryUsage().getUsed());
+        json.append(",\"threads\":").append(ManagementFactory.getThreadMXBean().getThreadCount());
+        json.append(",\"loadedClasses\":").append(ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+        json.append(",\"gcCount\":").append(gcCount);
+        json.append(",\"gcTime\":").append(gcTime);
+        json.append(",\"processors\":").append(Runtime.getRuntime().availableProcessors());
+        json.append('}');
+
+        return json.append('}').toString();
+    }
+
+}
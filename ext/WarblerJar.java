@@ -5,6 +5,7 @@
  * See the file LICENSE.txt for details.
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,8 +13,18 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -21,7 +32,9 @@ import java.util.zip.ZipOutputStream;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyHash;
+import org.jruby.RubyIO;
 import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyString;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.runtime.Block;
@@ -36,24 +49,48 @@ public class WarblerJar {
         task.defineAnnotatedMethods(WarblerJar.class);
     }
 
-    @JRubyMethod
-    public static IRubyObject create_jar(ThreadContext context, IRubyObject self,
-        IRubyObject jar_path, IRubyObject entries) {
+    /**
+     * Level for entries that are STORED (not compressed) in the archive.
+     */
+    static final int STORED = 0;
+
+    /**
+     * Size of chunks copied from readable (IO-like) entry values.
+     */
+    static final int CHUNK_SIZE = 16384;
+
+    @JRubyMethod(required = 2, optional = 1)
+    public static IRubyObject create_jar(ThreadContext context, IRubyObject self, IRubyObject[] args) {
         final Ruby runtime = context.runtime;
+        final IRubyObject jar_path = args[0], entries = args[1];
 
         if (!(entries instanceof RubyHash)) {
             throw runtime.newArgumentError("expected a hash for the second argument");
         }
+        if (args.length > 2 && !args[2].isNil() && !(args[2] instanceof RubyHash)) {
+            throw runtime.newArgumentError("expected a hash of options for the third argument");
+        }
 
         RubyHash hash = (RubyHash) entries;
+        Map<String, Integer> levels = compressionLevels(context, args.length > 2 ? args[2] : null);
+        int threads = compressionThreads(context, args.length > 2 ? args[2] : null);
+        WarblerZipWriter.Archive previous = previousArchive(context, args.length > 2 ? args[2] : null);
         try {
             FileOutputStream file = newFile(jar_path);
             try {
-                ZipOutputStream zip = new ZipOutputStream(file);
-                addEntries(context, zip, hash);
-                zip.finish();
+                if (threads > 1 || previous != null) {
+                    WarblerZipWriter zip = new WarblerZipWriter(file, threads, STREAM_OPENER);
+                    zip.setPrevious(previous);
+                    zip.write(entrySources(context, hash, levels));
+                } else {
+                    ZipOutputStream zip = new ZipOutputStream(file);
+                    addEntries(context, zip, hash, levels);
+                    zip.finish();
+                }
             } finally {
                 close(file);
+                if (previous != null) close(previous);
+                ARCHIVES.clear();
             }
         } catch (IOException e) {
             if (runtime.isDebug()) {
@@ -92,21 +129,173 @@ public class WarblerJar {
         }
     }
 
-    private static void addEntries(ThreadContext context, ZipOutputStream zip, RubyHash entries) throws IOException {
+    /**
+     * Opens an entry in a (possibly nested) jar as a (streaming) IO, unlike
+     * {@link #entry_in_jar} the contents are not read up-front. The IO is
+     * yielded and closed after the block returns, without a block the
+     * contents are read (as with {@link #entry_in_jar}) so nothing is left open.
+     */
+    @JRubyMethod
+    public static IRubyObject open_entry_in_jar(ThreadContext context, IRubyObject self,
+        IRubyObject jar_path, IRubyObject entry, Block block) {
+        if (!block.isGiven()) {
+            return entry_in_jar(context, self, jar_path, entry);
+        }
+        final Ruby runtime = context.runtime;
+        final RubyIO io;
+        try {
+            io = new RubyIO(runtime, getStream(jar_path.convertToString().getUnicodeValue(),
+                                               entry.convertToString().getUnicodeValue()));
+        } catch (IOException e) {
+            if (runtime.isDebug()) {
+                e.printStackTrace(runtime.getOut());
+            }
+            throw runtime.newIOErrorFromException(e);
+        }
+        try {
+            return block.yield(context, io);
+        } finally {
+            if (!io.callMethod(context, "closed?").isTrue()) {
+                io.callMethod(context, "close");
+            }
+        }
+    }
+
+    /**
+     * Per-entry compression levels from the <code>'levels'</code> option
+     * (entry name to level), a level of 0 means the entry gets STORED.
+     */
+    private static Map<String, Integer> compressionLevels(ThreadContext context, IRubyObject options) {
+        if (options == null || options.isNil()) {
+            return Collections.emptyMap();
+        }
+        IRubyObject levels = ((RubyHash) options).op_aref(context, context.runtime.newString("levels"));
+        if (levels.isNil()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (Object e : ((RubyHash) levels).directEntrySet()) {
+            Map.Entry entry = (Map.Entry) e;
+            map.put(((IRubyObject) entry.getKey()).convertToString().getUnicodeValue(),
+                    RubyNumeric.num2int((IRubyObject) entry.getValue()));
+        }
+        return map;
+    }
+
+    /**
+     * Number of threads compressing entries from the <code>'threads'</code>
+     * option, 0 (or less) to use all available processors.
+     */
+    private static int compressionThreads(ThreadContext context, IRubyObject options) {
+        if (options == null || options.isNil()) {
+            return 1;
+        }
+        IRubyObject threads = ((RubyHash) options).op_aref(context, context.runtime.newString("threads"));
+        if (threads.isNil()) {
+            return 1;
+        }
+        int count = RubyNumeric.num2int(threads);
+        return count > 0 ? count : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The previous archive (<code>'previous'</code> option) to reuse unchanged
+     * compressed entries from, null if not given or not a readable archive.
+     */
+    private static WarblerZipWriter.Archive previousArchive(ThreadContext context, IRubyObject options) {
+        if (options == null || options.isNil()) {
+            return null;
+        }
+        IRubyObject previous = ((RubyHash) options).op_aref(context, context.runtime.newString("previous"));
+        if (previous.isNil()) {
+            return null;
+        }
+        File file = getFile(previous);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return new WarblerZipWriter.Archive(file);
+        } catch (IOException e) {
+            System.err.println("Can not reuse " + file.getPath() + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    private static final WarblerZipWriter.Opener STREAM_OPENER = new WarblerZipWriter.Opener() {
+        public InputStream open(String path) throws IOException {
+            return getStream(path, null);
+        }
+    };
+
+    /**
+     * Entries (in the same order as {@link #addEntries}) for the parallel writer
+     * to compress concurrently. Sources are resolved lazily (on the writing Ruby
+     * thread) as the writer gets to them, thus only the contents of readable
+     * values within the writer's window are held in memory at a time.
+     */
+    private static List<WarblerZipWriter.Source> entrySources(final ThreadContext context, final RubyHash entries,
+        final Map<String, Integer> levels) {
+        final RubyArray keys = entries.keys().sort(context, Block.NULL_BLOCK);
+        return new AbstractList<WarblerZipWriter.Source>() {
+            public int size() {
+                return keys.getLength();
+            }
+
+            public WarblerZipWriter.Source get(int i) {
+                IRubyObject key = keys.entry(i);
+                IRubyObject value = entries.op_aref(context, key);
+                String entryName = key.convertToString().getUnicodeValue();
+                Integer level = levels.get(entryName);
+                int entryLevel = level == null ? Deflater.DEFAULT_COMPRESSION : level;
+                if (value.respondsTo("read")) {
+                    RubyString str = (RubyString) value.callMethod(context, "read").checkStringType();
+                    ByteList bytes = str.getByteList();
+                    return WarblerZipWriter.Source.bytes(entryName, entryLevel,
+                        bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+                }
+                File f;
+                if (value.isNil() || (f = getFile(value)).isDirectory()) {
+                    return WarblerZipWriter.Source.directory(entryName);
+                }
+                String path = f.exists() ? f.getPath() : value.convertToString().getUnicodeValue();
+                return WarblerZipWriter.Source.file(entryName, entryLevel, path);
+            }
+        };
+    }
+
+    private static void addEntries(ThreadContext context, ZipOutputStream zip, RubyHash entries,
+        Map<String, Integer> levels) throws IOException {
         RubyArray keys = entries.keys().sort(context, Block.NULL_BLOCK);
         for (int i = 0; i < keys.getLength(); i++) {
             IRubyObject key = keys.entry(i);
             IRubyObject value = entries.op_aref(context, key);
-            addEntry(context, zip, key.convertToString().getUnicodeValue(), value);
+            String entryName = key.convertToString().getUnicodeValue();
+            Integer level = levels.get(entryName);
+            addEntry(context, zip, entryName, value, level == null ? Deflater.DEFAULT_COMPRESSION : level);
         }
     }
 
-    private static void addEntry(ThreadContext context, ZipOutputStream zip, String entryName, IRubyObject value) throws IOException {
-        if (value.respondsTo("read")) {
+    private static void addEntry(ThreadContext context, ZipOutputStream zip, String entryName, IRubyObject value,
+        int level) throws IOException {
+        if (value.respondsTo("read") && level != STORED && isStreamable(context, value)) {
+            zip.setLevel(level);
+            zip.putNextEntry(new ZipEntry(entryName));
+            copyChunks(context, value, zip);
+        } else if (value.respondsTo("read")) {
             RubyString str = (RubyString) value.callMethod(context, "read").checkStringType();
             ByteList strByteList = str.getByteList();
             byte[] contents = strByteList.getUnsafeBytes();
-            zip.putNextEntry(new ZipEntry(entryName));
+            ZipEntry entry = new ZipEntry(entryName);
+            if (level == STORED) {
+                CRC32 crc = new CRC32();
+                crc.update(contents, strByteList.getBegin(), strByteList.getRealSize());
+                storedEntry(entry, strByteList.getRealSize(), crc.getValue());
+            }
+            else {
+                zip.setLevel(level);
+            }
+            zip.putNextEntry(entry);
             zip.write(contents, strByteList.getBegin(), strByteList.getRealSize());
         } else {
             File f;
@@ -119,9 +308,29 @@ public class WarblerJar {
                 }
 
                 try {
+                    ZipEntry entry = new ZipEntry(entryName);
+                    if (level == STORED) {
+                        // size and CRC need to be known up-front
+                        InputStream inFile = getStream(path, null);
+                        try {
+                            CRC32 crc = new CRC32();
+                            byte[] buf = new byte[16384];
+                            long size = 0; int bytesRead;
+                            while ((bytesRead = inFile.read(buf)) != -1) {
+                                crc.update(buf, 0, bytesRead);
+                                size += bytesRead;
+                            }
+                            storedEntry(entry, size, crc.getValue());
+                        } finally {
+                            close(inFile);
+                        }
+                    }
+                    else {
+                        zip.setLevel(level);
+                    }
                     InputStream inFile = getStream(path, null);
                     try {
-                        zip.putNextEntry(new ZipEntry(entryName));
+                        zip.putNextEntry(entry);
                         byte[] buf = new byte[16384];
                         int bytesRead;
                         while ((bytesRead = inFile.read(buf)) != -1) {
@@ -137,6 +346,35 @@ public class WarblerJar {
         }
     }
 
+    /**
+     * IO and StringIO values support <code>read(length, buffer)</code> to be
+     * consumed in chunks.
+     */
+    private static boolean isStreamable(ThreadContext context, IRubyObject value) {
+        if (value instanceof RubyIO) {
+            return true;
+        }
+        IRubyObject stringIO = context.runtime.getObject().getConstantAt("StringIO");
+        return stringIO instanceof RubyModule && ((RubyModule) stringIO).isInstance(value);
+    }
+
+    private static void copyChunks(ThreadContext context, IRubyObject value, OutputStream out) throws IOException {
+        final Ruby runtime = context.runtime;
+        RubyString buffer = RubyString.newString(runtime, new ByteList(CHUNK_SIZE));
+        IRubyObject[] args = new IRubyObject[] { runtime.newFixnum(CHUNK_SIZE), buffer };
+        while (!value.callMethod(context, "read", args).isNil()) {
+            ByteList bytes = buffer.getByteList();
+            out.write(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        }
+    }
+
+    private static void storedEntry(ZipEntry entry, long size, long crc) {
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+    }
+
     private static FileOutputStream newFile(IRubyObject jar_path) throws IOException {
         return new FileOutputStream(getFile(jar_path));
     }
@@ -163,6 +401,19 @@ public class WarblerJar {
         }
 
         String[] path = jar.split("!/");
+        if (path.length == 1 && entry == null) {
+            return new FileInputStream(path[0]);
+        }
+        try {
+            return ARCHIVES.open(path, entry);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) { // central directory not readable
+            return scanStream(path, entry);
+        }
+    }
+
+    private static InputStream scanStream(String[] path, String entry) throws IOException {
         InputStream stream = new FileInputStream(path[0]);
         for (int i = 1; i < path.length; i++) {
             stream = entryInJar(stream, path[i]);
@@ -175,6 +426,119 @@ public class WarblerJar {
         return entryInJar(stream, entry);
     }
 
+    private static final Archives ARCHIVES = new Archives();
+
+    /**
+     * Archives opened by {@link #getStream} with their entries indexed from the
+     * central directory. Nested archives (e.g. <code>outer.jar!/inner.jar</code>)
+     * are read into memory once, repeated lookups do not scan any archive.
+     */
+    private static final class Archives {
+
+        private static final int MAX_SIZE = 16;
+
+        private static final class Cached {
+            final WarblerZipWriter.Archive archive;
+            final long length, modified;
+
+            Cached(WarblerZipWriter.Archive archive, long length, long modified) {
+                this.archive = archive;
+                this.length = length;
+                this.modified = modified;
+            }
+        }
+
+        private final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() <= MAX_SIZE) return false;
+                close(eldest.getValue().archive); // entries still being read keep it open
+                return true;
+            }
+        };
+
+        InputStream open(String[] path, String entry) throws IOException {
+            int count = entry == null ? path.length - 1 : path.length;
+            String name = entry == null ? path[path.length - 1] : entry;
+            InputStream stream = archive(path, count).open(name);
+            if (stream == null) {
+                throw new FileNotFoundException("entry '" + name + "' not found in " + join(path, count));
+            }
+            return stream;
+        }
+
+        private synchronized WarblerZipWriter.Archive archive(String[] path, int count) throws IOException {
+            File file = new File(path[0]);
+            String key = file.getAbsolutePath();
+            Cached cached = cache.get(key);
+            if (cached != null && (cached.length != file.length() || cached.modified != file.lastModified())) {
+                evict(key); // changed since opened
+                cached = null;
+            }
+            if (cached == null) {
+                cached = new Cached(new WarblerZipWriter.Archive(file), file.length(), file.lastModified());
+                cache.put(key, cached);
+            }
+            for (int i = 1; i < count; i++) {
+                WarblerZipWriter.Archive archive = cached.archive;
+                key = key + "!/" + path[i];
+                cached = cache.get(key);
+                if (cached == null) {
+                    InputStream stream = archive.open(path[i]);
+                    if (stream == null) {
+                        throw new FileNotFoundException("entry '" + path[i] + "' not found in " + join(path, i));
+                    }
+                    cached = new Cached(new WarblerZipWriter.Archive(readFully(stream), key), 0, 0);
+                    cache.put(key, cached);
+                }
+            }
+            return cached.archive;
+        }
+
+        private void evict(String key) {
+            for (Iterator<Map.Entry<String, Cached>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Cached> entry = it.next();
+                if (entry.getKey().equals(key) || entry.getKey().startsWith(key + "!/")) {
+                    close(entry.getValue().archive);
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Close all opened archives (once an archive got created).
+         */
+        synchronized void clear() {
+            for (Cached cached : cache.values()) {
+                close(cached.archive);
+            }
+            cache.clear();
+        }
+
+        private static byte[] readFully(InputStream stream) throws IOException {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buf = new byte[16384];
+                int bytesRead;
+                while ((bytesRead = stream.read(buf)) != -1) {
+                    bytes.write(buf, 0, bytesRead);
+                }
+                return bytes.toByteArray();
+            } finally {
+                close(stream);
+            }
+        }
+
+        private static String join(String[] path, int count) {
+            StringBuilder str = new StringBuilder(path[0]);
+            for (int i = 1; i < count; i++) {
+                str.append("!/").append(path[i]);
+            }
+            return str.toString();
+        }
+
+    }
+
     private static String trimTrailingSlashes(String path) {
         if (path.endsWith("/")) {
             return path.substring(0, path.length() - 1);
@@ -12,6 +12,7 @@ import org.jruby.runtime.load.BasicLibraryService;
 public class WarblerJarService implements BasicLibraryService {
     public boolean basicLoad(final Ruby runtime) throws IOException {
         WarblerJar.create(runtime);
+        WarblerFiles.create(runtime);
         return true;
     }
 }
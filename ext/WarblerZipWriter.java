@@ -0,0 +1,782 @@
+/**
+ * Copyright (c) 2010-2012 Engine Yard, Inc.
+ * Copyright (c) 2007-2009 Sun Microsystems, Inc.
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip (jar) archive compressing entries concurrently : entries are
+ * deflated on a pool of threads (into memory, spilling large entries to a
+ * temporary file) while the calling thread writes them out in the given order.
+ * Only a bounded number of compressed entries are pending at any time.
+ *
+ * The archive layout matches a ZipOutputStream written one (e.g. UTF-8 names,
+ * Zip64 records when needed), except entries not needing a data descriptor as
+ * sizes and CRC are known when an entry gets written.
+ *
+ * Given a previous archive, entries whose contents did not change (same size
+ * and CRC-32, compressed using the same method) are copied over as is (raw
+ * compressed data) instead of being compressed again. Deflated entries record
+ * their level in the general purpose flags (as zip tools do : maximum 8-9,
+ * normal 3-7, fast 2 and super fast 1), an entry is only reused when the
+ * level maps to the same flags, thus a change within 3-7 needs a full rebuild.
+ */
+class WarblerZipWriter {
+
+    /**
+     * An archive entry : in-memory contents, a file (path) or a directory (neither).
+     */
+    static final class Source {
+
+        final String name;
+        final int level; // 0 - STORED
+        final byte[] bytes; final int offset, length;
+        final String path; // possibly pointing within a jar e.g. "lib.jar!/entry"
+
+        private Source(String name, int level, byte[] bytes, int offset, int length, String path) {
+            this.name = name; this.level = level;
+            this.bytes = bytes; this.offset = offset; this.length = length;
+            this.path = path;
+        }
+
+        static Source bytes(String name, int level, byte[] bytes, int offset, int length) {
+            return new Source(name, level, bytes, offset, length, null);
+        }
+
+        static Source file(String name, int level, String path) {
+            return new Source(name, level, null, 0, 0, path);
+        }
+
+        static Source directory(String name) {
+            return new Source(name.endsWith("/") ? name : name + '/', STORED, null, 0, 0, null);
+        }
+
+        boolean isDirectory() { return bytes == null && path == null; }
+
+    }
+
+    /**
+     * Opens a (file) source's contents.
+     */
+    interface Opener {
+        InputStream open(String path) throws IOException;
+    }
+
+    static final int STORED = 0;
+    static final int SPILL_THRESHOLD = 1024 * 1024; // compressed bytes kept in memory (per entry)
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    private final OutputStream out;
+    private final int threads;
+    private final Opener opener;
+    private Archive previous;
+    private final int dosTime = dosTime(System.currentTimeMillis());
+
+    private long written;
+    private final List<Compressed> central = new ArrayList<Compressed>();
+
+    WarblerZipWriter(final OutputStream out, final int threads, final Opener opener) {
+        this.out = new BufferedOutputStream(out, 65536);
+        this.threads = threads;
+        this.opener = opener;
+    }
+
+    /**
+     * Reuse unchanged entries' compressed data from a previously written archive.
+     */
+    void setPrevious(final Archive previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Writes the entries (in order) and finishes the archive (does not close the stream).
+     * Sources are retrieved one by one (on the calling thread) as they get compressed.
+     */
+    void write(final List<Source> sources) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "warbler-zip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Deque<Future<Compressed>> pending = new ArrayDeque<Future<Compressed>>();
+        try {
+            final int window = threads * 4;
+            int next = 0;
+            while ( next < sources.size() || ! pending.isEmpty() ) {
+                while ( next < sources.size() && pending.size() < window ) {
+                    final Source source = sources.get(next++);
+                    pending.add(executor.submit(new Callable<Compressed>() {
+                        public Compressed call() throws IOException { return compress(source); }
+                    }));
+                }
+                final Compressed entry = get(pending.poll());
+                if ( entry != null ) writeEntry(entry);
+            }
+            writeCentralDirectory();
+            out.flush();
+        }
+        finally {
+            for ( Future<Compressed> future : pending ) future.cancel(true);
+            executor.shutdownNow();
+            for ( Future<Compressed> future : pending ) { // delete spilled data
+                try { if ( future.isDone() && ! future.isCancelled() ) future.get().dispose(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    private static Compressed get(final Future<Compressed> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) throw (IOException) cause;
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the compressed entry or null if the source file does not exist
+     */
+    private Compressed compress(final Source source) throws IOException {
+        final Compressed entry = new Compressed(source.name);
+        if ( source.isDirectory() ) return entry;
+
+        final Archive.Entry reusable = previous == null ? null : previous.get(source.name);
+        if ( reusable != null && isReusable(source, reusable) && isUnchanged(source, reusable) ) {
+            try {
+                entry.data = previous.data(reusable);
+                entry.reused(reusable);
+                return entry;
+            }
+            catch (IOException e) { /* compress it again */ }
+        }
+
+        if ( source.bytes != null && source.level == STORED ) { // no copying
+            final CRC32 crc = new CRC32();
+            crc.update(source.bytes, source.offset, source.length);
+            entry.stored(crc.getValue(), source.length);
+            entry.data = new SpillBuffer(source.bytes, source.offset, source.length);
+            return entry;
+        }
+
+        final InputStream in;
+        if ( source.bytes != null ) {
+            in = new ByteArrayInputStream(source.bytes, source.offset, source.length);
+        }
+        else {
+            try {
+                in = opener.open(source.path);
+            }
+            catch (IOException e) {
+                System.err.println("File not found; " + source.path + " not in archive");
+                return null;
+            }
+        }
+        final SpillBuffer data = new SpillBuffer();
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = source.level == STORED ? null : new Deflater(source.level, true);
+        try {
+            final byte[] buf = new byte[65536];
+            final byte[] deflated = deflater == null ? null : new byte[65536];
+            long size = 0; int bytesRead;
+            while ((bytesRead = in.read(buf)) != -1) {
+                crc.update(buf, 0, bytesRead);
+                size += bytesRead;
+                if ( deflater == null ) {
+                    data.write(buf, 0, bytesRead);
+                    continue;
+                }
+                deflater.setInput(buf, 0, bytesRead);
+                while ( ! deflater.needsInput() ) {
+                    data.write(deflated, 0, deflater.deflate(deflated));
+                }
+            }
+            if ( deflater == null ) {
+                entry.stored(crc.getValue(), size);
+            }
+            else {
+                deflater.finish();
+                while ( ! deflater.finished() ) {
+                    data.write(deflated, 0, deflater.deflate(deflated));
+                }
+                entry.deflated(crc.getValue(), size, deflater.getBytesWritten(), deflateFlags(source.level));
+            }
+            entry.data = data;
+            return entry;
+        }
+        catch (IOException e) {
+            data.dispose();
+            throw e;
+        }
+        finally {
+            if ( deflater != null ) deflater.end();
+            try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    private static boolean isReusable(final Source source, final Archive.Entry previous) {
+        if ( source.level == STORED ) return previous.method == 0;
+        return previous.method == 8 && previous.flags == deflateFlags(source.level);
+    }
+
+    // general purpose flags (bits 1 and 2) for a deflate level, -1 being the default (6)
+    private static int deflateFlags(final int level) {
+        switch ( level ) {
+            case 1: return 0x6; // super fast
+            case 2: return 0x4; // fast
+            case 8: case 9: return 0x2; // maximum
+            default: return 0; // normal
+        }
+    }
+
+    private boolean isUnchanged(final Source source, final Archive.Entry previous) {
+        if ( source.bytes != null ) {
+            if ( source.length != previous.size ) return false;
+            final CRC32 crc = new CRC32();
+            crc.update(source.bytes, source.offset, source.length);
+            return crc.getValue() == previous.crc;
+        }
+        final File file = new File(source.path);
+        if ( file.isFile() && file.length() != previous.size ) return false;
+        final InputStream in;
+        try {
+            in = opener.open(source.path);
+        }
+        catch (IOException e) {
+            return false; // reported when compressed
+        }
+        try {
+            final CRC32 crc = new CRC32();
+            final byte[] buf = new byte[65536];
+            long size = 0; int bytesRead;
+            while ((bytesRead = in.read(buf)) != -1) {
+                crc.update(buf, 0, bytesRead);
+                size += bytesRead;
+            }
+            return size == previous.size && crc.getValue() == previous.crc;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    private void writeEntry(final Compressed entry) throws IOException {
+        try {
+            entry.offset = written;
+            final boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+            writeInt(0x04034b50); // local file header
+            writeShort(zip64 ? 45 : ( entry.method == 8 ? 20 : 10 ));
+            writeShort(UTF8_FLAG | entry.flags);
+            writeShort(entry.method);
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(zip64 ? ZIP64_LIMIT : entry.compressedSize);
+            writeInt(zip64 ? ZIP64_LIMIT : entry.size);
+            writeShort(entry.name.length);
+            writeShort(zip64 ? 20 : 0);
+            writeBytes(entry.name, 0, entry.name.length);
+            if ( zip64 ) {
+                writeShort(0x0001); writeShort(16);
+                writeLong(entry.size); writeLong(entry.compressedSize);
+            }
+            if ( entry.data != null ) {
+                entry.data.writeTo(out);
+                written += entry.compressedSize;
+            }
+            central.add(entry);
+        }
+        finally {
+            entry.dispose();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        final long start = written;
+        for ( Compressed entry : central ) {
+            final boolean size64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+            final boolean offset64 = entry.offset >= ZIP64_LIMIT;
+            final int extra = ( size64 ? 16 : 0 ) + ( offset64 ? 8 : 0 );
+            writeInt(0x02014b50); // central file header
+            writeShort(extra > 0 ? 45 : 20); // version made by
+            writeShort(extra > 0 ? 45 : ( entry.method == 8 ? 20 : 10 ));
+            writeShort(UTF8_FLAG | entry.flags);
+            writeShort(entry.method);
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(size64 ? ZIP64_LIMIT : entry.compressedSize);
+            writeInt(size64 ? ZIP64_LIMIT : entry.size);
+            writeShort(entry.name.length);
+            writeShort(extra > 0 ? extra + 4 : 0);
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(offset64 ? ZIP64_LIMIT : entry.offset);
+            writeBytes(entry.name, 0, entry.name.length);
+            if ( extra > 0 ) {
+                writeShort(0x0001); writeShort(extra);
+                if ( size64 ) { writeLong(entry.size); writeLong(entry.compressedSize); }
+                if ( offset64 ) writeLong(entry.offset);
+            }
+        }
+        final long end = written, size = end - start;
+        final int count = central.size();
+        if ( count >= 0xFFFF || size >= ZIP64_LIMIT || start >= ZIP64_LIMIT ) {
+            writeInt(0x06064b50); // Zip64 end of central directory record
+            writeLong(44);
+            writeShort(45); writeShort(45);
+            writeInt(0); writeInt(0);
+            writeLong(count); writeLong(count);
+            writeLong(size); writeLong(start);
+            writeInt(0x07064b50); // Zip64 end of central directory locator
+            writeInt(0);
+            writeLong(end);
+            writeInt(1);
+        }
+        writeInt(0x06054b50); // end of central directory record
+        writeShort(0); writeShort(0);
+        writeShort(Math.min(count, 0xFFFF)); writeShort(Math.min(count, 0xFFFF));
+        writeInt(Math.min(size, ZIP64_LIMIT));
+        writeInt(Math.min(start, ZIP64_LIMIT));
+        writeShort(0); // comment length
+    }
+
+    private static final int UTF8_FLAG = 0x800; // names are UTF-8
+
+    private final byte[] scratch = new byte[8];
+
+    private void writeShort(final int v) throws IOException {
+        scratch[0] = (byte) v; scratch[1] = (byte) (v >>> 8);
+        writeBytes(scratch, 0, 2);
+    }
+
+    private void writeInt(final long v) throws IOException {
+        scratch[0] = (byte) v; scratch[1] = (byte) (v >>> 8);
+        scratch[2] = (byte) (v >>> 16); scratch[3] = (byte) (v >>> 24);
+        writeBytes(scratch, 0, 4);
+    }
+
+    private void writeLong(final long v) throws IOException {
+        writeInt(v); writeInt(v >>> 32);
+    }
+
+    private void writeBytes(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static int dosTime(final long time) {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        final int year = cal.get(Calendar.YEAR);
+        if ( year < 1980 ) return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16 |
+            cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class Compressed {
+
+        final byte[] name;
+        int method = 0; // STORED
+        int flags; // deflate level flags
+        long crc, size, compressedSize, offset;
+        Data data;
+
+        Compressed(final String name) {
+            try {
+                this.name = name.getBytes("UTF-8");
+            }
+            catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void stored(final long crc, final long size) {
+            this.method = 0; this.crc = crc; this.size = this.compressedSize = size;
+        }
+
+        void deflated(final long crc, final long size, final long compressedSize, final int flags) {
+            this.method = 8; this.crc = crc; this.size = size; this.compressedSize = compressedSize;
+            this.flags = flags;
+        }
+
+        void reused(final Archive.Entry entry) {
+            this.method = entry.method; this.crc = entry.crc; this.size = entry.size; this.compressedSize = entry.compressedSize;
+            this.flags = entry.flags;
+        }
+
+        void dispose() {
+            if ( data != null ) data.dispose();
+        }
+
+    }
+
+    private interface Data {
+        void writeTo(OutputStream out) throws IOException;
+        void dispose();
+    }
+
+    /**
+     * Bytes kept in memory up to the spill threshold, a temporary file beyond.
+     */
+    private static final class SpillBuffer extends OutputStream implements Data {
+
+        private byte[] buf; private int offset, count;
+        private File file; private OutputStream fileOut;
+
+        SpillBuffer() { this.buf = new byte[8192]; }
+
+        SpillBuffer(final byte[] bytes, final int offset, final int length) {
+            this.buf = bytes; this.offset = offset; this.count = length;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if ( len == 0 ) return;
+            if ( fileOut != null ) {
+                fileOut.write(b, off, len); return;
+            }
+            if ( count + len > SPILL_THRESHOLD ) {
+                file = File.createTempFile("warbler", ".zip.part");
+                fileOut = new BufferedOutputStream(new FileOutputStream(file), 65536);
+                fileOut.write(buf, 0, count);
+                fileOut.write(b, off, len);
+                buf = null; count = 0;
+                return;
+            }
+            if ( count + len > buf.length ) {
+                final byte[] newBuf = new byte[Math.max(buf.length * 2, count + len)];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        public void writeTo(final OutputStream out) throws IOException {
+            if ( file == null ) {
+                out.write(buf, offset, count); return;
+            }
+            fileOut.close();
+            final InputStream in = new FileInputStream(file);
+            try {
+                final byte[] b = new byte[65536]; int bytesRead;
+                while ((bytesRead = in.read(b)) != -1) out.write(b, 0, bytesRead);
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        public void dispose() {
+            buf = null;
+            if ( file != null ) {
+                try { fileOut.close(); } catch (IOException e) { }
+                file.delete();
+                file = null;
+            }
+        }
+
+    }
+
+    /**
+     * An archive's entries, as read from the central directory : a (previously
+     * written) archive file or the contents of a nested archive. Entries might
+     * be read concurrently.
+     */
+    static final class Archive implements Closeable {
+
+        static final class Entry {
+            final int method, flags; // (deflate level) flags
+            final long crc, size, compressedSize, offset;
+
+            Entry(int method, int flags, long crc, long size, long compressedSize, long offset) {
+                this.method = method; this.flags = flags; this.crc = crc;
+                this.size = size; this.compressedSize = compressedSize; this.offset = offset;
+            }
+        }
+
+        private final RandomAccessFile file;
+        private final byte[] bytes; // (nested) archive contents
+        private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        private int openStreams; // the file gets closed once no more entries are read
+        private boolean closed;
+
+        Archive(final File path) throws IOException {
+            this.file = new RandomAccessFile(path, "r");
+            this.bytes = null;
+            try {
+                readCentralDirectory();
+            }
+            catch (IOException e) {
+                close(); throw e;
+            }
+            catch (RuntimeException e) { // corrupted (e.g. out of bounds)
+                close(); throw new IOException("invalid archive " + path + " (" + e + ")");
+            }
+        }
+
+        Archive(final byte[] bytes, final String name) throws IOException {
+            this.file = null;
+            this.bytes = bytes;
+            try {
+                readCentralDirectory();
+            }
+            catch (RuntimeException e) {
+                throw new IOException("invalid archive " + name + " (" + e + ")");
+            }
+        }
+
+        Entry get(final String name) {
+            return entries.get(name);
+        }
+
+        /**
+         * Opens an entry's (uncompressed) contents, a trailing slash is not
+         * significant when looking up the entry.
+         * @return null if there's no such entry
+         */
+        InputStream open(String name) throws IOException {
+            if ( name.endsWith("/") ) name = name.substring(0, name.length() - 1);
+            Entry entry = entries.get(name);
+            if ( entry == null ) entry = entries.get(name + '/');
+            if ( entry == null ) return null;
+            final InputStream raw = new RawInputStream(dataOffset(entry), entry.compressedSize);
+            synchronized (this) {
+                if ( closed ) throw new IOException("archive closed");
+                openStreams++;
+            }
+            if ( entry.method == 0 ) return raw;
+            return new InflaterInputStream(raw, new Inflater(true), 8192) {
+                private boolean closed, eof;
+                @Override
+                protected void fill() throws IOException {
+                    if ( eof ) throw new EOFException("Unexpected end of ZLIB input stream");
+                    len = in.read(buf, 0, buf.length);
+                    if ( len == -1 ) { // as ZipFile does, provide a dummy byte
+                        buf[0] = 0; len = 1; eof = true;
+                    }
+                    inf.setInput(buf, 0, len);
+                }
+                @Override
+                public void close() throws IOException {
+                    if ( closed ) return;
+                    closed = true;
+                    inf.end(); super.close();
+                }
+            };
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        private void readCentralDirectory() throws IOException {
+            final long length = bytes != null ? bytes.length : file.length();
+            final int tail = (int) Math.min(length, 0xFFFF + 22);
+            final ByteBuffer end = read(length - tail, tail);
+            int eocd = -1;
+            for ( int i = tail - 22; i >= 0; i-- ) {
+                if ( end.getInt(i) == 0x06054b50 ) { eocd = i; break; }
+            }
+            if ( eocd == -1 ) throw new ZipException("end of central directory not found");
+
+            long count = end.getShort(eocd + 10) & 0xFFFF;
+            long size = end.getInt(eocd + 12) & 0xFFFFFFFFL;
+            long start = end.getInt(eocd + 16) & 0xFFFFFFFFL;
+            if ( eocd >= 20 && end.getInt(eocd - 20) == 0x07064b50 ) { // Zip64 locator
+                final ByteBuffer zip64 = read(end.getLong(eocd - 20 + 8), 56);
+                if ( zip64.getInt(0) != 0x06064b50 ) throw new ZipException("invalid Zip64 end of central directory");
+                count = zip64.getLong(32); size = zip64.getLong(40); start = zip64.getLong(48);
+            }
+
+            final ByteBuffer dir = read(start, (int) size);
+            int pos = 0;
+            for ( long i = 0; i < count; i++ ) {
+                if ( dir.getInt(pos) != 0x02014b50 ) throw new ZipException("invalid central directory entry");
+                final int flags = dir.getShort(pos + 8) & 0xFFFF;
+                final int method = dir.getShort(pos + 10) & 0xFFFF;
+                final long crc = dir.getInt(pos + 16) & 0xFFFFFFFFL;
+                long compressedSize = dir.getInt(pos + 20) & 0xFFFFFFFFL;
+                long entrySize = dir.getInt(pos + 24) & 0xFFFFFFFFL;
+                final int nameLength = dir.getShort(pos + 28) & 0xFFFF;
+                final int extraLength = dir.getShort(pos + 30) & 0xFFFF;
+                final int commentLength = dir.getShort(pos + 32) & 0xFFFF;
+                long offset = dir.getInt(pos + 42) & 0xFFFFFFFFL;
+                final String name = new String(dir.array(), pos + 46, nameLength, "UTF-8");
+
+                int extra = pos + 46 + nameLength; final int extraEnd = extra + extraLength;
+                while ( extra + 4 <= extraEnd ) {
+                    final int id = dir.getShort(extra) & 0xFFFF, len = dir.getShort(extra + 2) & 0xFFFF;
+                    if ( id == 0x0001 ) { // Zip64 extended information
+                        int field = extra + 4;
+                        if ( entrySize == ZIP64_LIMIT ) { entrySize = dir.getLong(field); field += 8; }
+                        if ( compressedSize == ZIP64_LIMIT ) { compressedSize = dir.getLong(field); field += 8; }
+                        if ( offset == ZIP64_LIMIT ) offset = dir.getLong(field);
+                    }
+                    extra += 4 + len;
+                }
+                if ( ( flags & 1 ) == 0 && ( method == 0 || method == 8 ) ) { // not encrypted
+                    entries.put(name, new Entry(method, method == 8 ? flags & 0x6 : 0, crc, entrySize, compressedSize, offset));
+                }
+                pos = extraEnd + commentLength;
+            }
+        }
+
+        /**
+         * The raw (compressed) data of an entry, located after its local header.
+         */
+        Data data(final Entry entry) throws IOException {
+            final long start = dataOffset(entry);
+            return new Data() {
+                public void writeTo(final OutputStream out) throws IOException {
+                    final byte[] buf = new byte[65536];
+                    long position = start, remaining = entry.compressedSize;
+                    while ( remaining > 0 ) {
+                        final int len = (int) Math.min(buf.length, remaining);
+                        read(position, buf, 0, len);
+                        out.write(buf, 0, len);
+                        position += len; remaining -= len;
+                    }
+                }
+                public void dispose() { /* noop */ }
+            };
+        }
+
+        private long dataOffset(final Entry entry) throws IOException {
+            final ByteBuffer header = read(entry.offset, 30);
+            if ( header.getInt(0) != 0x04034b50 ) throw new ZipException("invalid local header at " + entry.offset);
+            return entry.offset + 30 + ( header.getShort(26) & 0xFFFF ) + ( header.getShort(28) & 0xFFFF );
+        }
+
+        private ByteBuffer read(final long position, final int length) throws IOException {
+            final byte[] buf = new byte[length];
+            read(position, buf, 0, length);
+            return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void read(final long position, final byte[] buf, final int offset, final int length) throws IOException {
+            if ( bytes != null ) {
+                if ( position < 0 || position + length > bytes.length ) throw new EOFException();
+                System.arraycopy(bytes, (int) position, buf, offset, length);
+                return;
+            }
+            synchronized (file) {
+                file.seek(position);
+                file.readFully(buf, offset, length);
+            }
+        }
+
+        /**
+         * Closes the archive, if entries are still being read it gets closed
+         * once their streams are closed.
+         */
+        public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                if ( openStreams > 0 ) return;
+            }
+            if ( file != null ) file.close();
+        }
+
+        private void streamClosed() throws IOException {
+            synchronized (this) {
+                if ( --openStreams > 0 || ! closed ) return;
+            }
+            if ( file != null ) file.close();
+        }
+
+        private final class RawInputStream extends InputStream {
+
+            private long position, remaining;
+            private boolean closed;
+
+            RawInputStream(final long position, final long length) {
+                this.position = position; this.remaining = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if ( remaining <= 0 ) return -1;
+                if ( len == 0 ) return 0;
+                final int n = (int) Math.min(len, remaining);
+                Archive.this.read(position, b, off, n);
+                position += n; remaining -= n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(remaining, Integer.MAX_VALUE);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if ( closed ) return;
+                closed = true;
+                streamClosed();
+            }
+
+        }
+
+    }
+
+}
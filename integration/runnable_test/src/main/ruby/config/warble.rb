@@ -6,4 +6,12 @@ Warbler::Config.new do |config|
   config.includes = FileList["Rakefile"]
 
   config.gems << "rake"
+
+  # `warble FEATURES=true' builds features.war for RunnableWarLauncherTestIT,
+  # test.war keeps the defaults
+  if ENV['FEATURES']
+    config.jar_name = "features"
+    config.lazy_extract = true
+    config.webserver_options.health_path = '/health'
+  end
 end
@@ -0,0 +1,913 @@
+package org.jruby.warbler;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Runs the launcher (java -jar test.war -S rake ...) with variations of the
+ * runnable war and launcher options.
+ */
+public class RunnableWarLauncherTestIT
+{
+    private final File testWar = new File(System.getProperty("testWar"));
+    private final File buildDirectory = testWar.getParentFile();
+    // built with lazy_extract and a health check path (config/warble.rb)
+    private final File featuresWar = new File(System.getProperty("featuresWar"));
+
+    @Test
+    public void testZip64Archive() throws Exception
+    {
+        // more than 65535 entries, STORED entries are read using the Zip64 central directory
+        File war = new File(buildDirectory, "zip64.war");
+        copyWar(testWar, war, Collections.<String, byte[]>emptyMap(), 70000);
+        File testFile = testFile("zip64-file.tmp");
+        String output = runWar(war, NO_ENV, Arrays.asList("-Dwarbler.debug=true"), "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertFalse(output, output.contains("zip64 archives are not supported"));
+        Assert.assertFalse(output, output.contains("streaming WEB-INF/"));
+    }
+
+    @Test
+    public void testRelaunchWithEnvironmentOptions() throws Exception
+    {
+        // options from JAVA_TOOL_OPTIONS are picked up by the relaunched JVM, not passed again
+        Properties props = launcherProperties(testWar);
+        props.setProperty("jvm.options", "-Dwarbler.it.relaunch=true");
+        File war = new File(buildDirectory, "relaunch.war");
+        copyWar(testWar, war, Collections.singletonMap("META-INF/warbler.properties", toBytes(props)), 0);
+        File testFile = testFile("relaunch-file.tmp");
+        Map<String, String> env = Collections.singletonMap("JAVA_TOOL_OPTIONS", "-Dwarbler.it.tool=\"a b\"");
+        String output = runWar(war, env, Arrays.asList("-Dwarbler.debug=true"), "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        String relaunch = outputLine(output, "relaunching with: ");
+        Assert.assertTrue(relaunch, relaunch.contains("-Dwarbler.it.relaunch=true"));
+        Assert.assertFalse(relaunch, relaunch.contains("-Dwarbler.it.tool"));
+        Assert.assertTrue(relaunch, relaunch.contains("-Dwarbler.debug=true"));
+    }
+
+    @Test
+    public void testRelaunchDisabled() throws Exception
+    {
+        Properties props = launcherProperties(testWar);
+        props.setProperty("jvm.options", "-Dwarbler.it.relaunch=true");
+        File war = new File(buildDirectory, "no-relaunch.war");
+        copyWar(testWar, war, Collections.singletonMap("META-INF/warbler.properties", toBytes(props)), 0);
+        File testFile = testFile("no-relaunch-file.tmp");
+        String output = runWar(war, NO_ENV, Arrays.asList("-Dwarbler.debug=true", "-Dwarbler.relaunch=false"),
+                               "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertFalse(output, output.contains("relaunching with: "));
+    }
+
+    @Test
+    public void testClassDataSharing() throws Exception
+    {
+        // the first (relaunched) run dumps an archive of the loaded classes, later runs map it
+        Assume.assumeTrue(javaVersion() >= 13);
+        Properties props = launcherProperties(testWar);
+        props.setProperty("jvm.cds", "true");
+        File war = new File(buildDirectory, "cds.war");
+        copyWar(testWar, war, Collections.singletonMap("META-INF/warbler.properties", toBytes(props)), 0);
+        File cache = emptyDirectory("cds-cache");
+        List<String> jvmArgs = Arrays.asList("-Dwarbler.debug=true", "-Dwarbler.extract_cache=" + cache);
+        File testFile = testFile("cds-file.tmp");
+
+        String relaunch = outputLine(runWar(war, NO_ENV, jvmArgs, "create_test_file[" + testFile + "]"), "relaunching with: ");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertTrue(relaunch, relaunch.contains(", -cp, "));
+        List<String> archives = new ArrayList<String>();
+        for (String name : listFiles(cache)) {
+            if (name.startsWith("classes-") && name.endsWith(".jsa")) {
+                archives.add(name);
+            }
+        }
+        Assert.assertEquals(listFiles(cache).toString(), 1, archives.size());
+
+        testFile.delete();
+        relaunch = outputLine(runWar(war, NO_ENV, jvmArgs, "create_test_file[" + testFile + "]"), "relaunching with: ");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertTrue(relaunch, relaunch.contains("-XX:SharedArchiveFile="));
+        Assert.assertFalse(relaunch, relaunch.contains("-XX:ArchiveClassesAtExit"));
+    }
+
+    private static int javaVersion()
+    {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    @Test
+    public void testLazyExtract() throws Exception
+    {
+        // only the jars get extracted, the Rakefile and rake are loaded from the (indexed) war
+        File cache = emptyDirectory("lazy-cache");
+        File testFile = testFile("lazy-file.tmp");
+        runWar(featuresWar, NO_ENV, Arrays.asList("-Dwarbler.lazy_extract=true", "-Dwarbler.extract_cache=" + cache),
+               "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        List<String> extracted = listFiles(cache);
+        Assert.assertFalse(extracted.toString(), extracted.isEmpty());
+        for (String path : extracted) {
+            Assert.assertTrue(extracted.toString(), path.endsWith(".jar") || path.startsWith("."));
+        }
+    }
+
+    @Test
+    public void testEagerExtract() throws Exception
+    {
+        // an indexed war still extracts everything with lazy extraction turned off
+        File cache = emptyDirectory("eager-cache");
+        File testFile = testFile("eager-file.tmp");
+        runWar(featuresWar, NO_ENV, Arrays.asList("-Dwarbler.lazy_extract=false", "-Dwarbler.extract_cache=" + cache),
+               "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertTrue(listFiles(cache).toString(), listFiles(cache).contains("Rakefile"));
+    }
+
+    @Test
+    public void testParallelExtract() throws Exception
+    {
+        // all entries extracted (concurrently) with their contents
+        File cache = emptyDirectory("parallel-cache");
+        File testFile = testFile("parallel-file.tmp");
+        runWar(testWar, NO_ENV, Arrays.asList("-Dwarbler.extract_threads=4", "-Dwarbler.extract_cache=" + cache),
+               "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        File[] dirs = cache.listFiles();
+        Assert.assertEquals(Arrays.toString(dirs), 1, dirs.length);
+        ZipFile zip = new ZipFile(testWar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                File file = new File(dirs[0], extractPath(entry.getName()));
+                Assert.assertTrue(file + " not extracted", file.isFile());
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    Assert.assertTrue(file + " differs", Arrays.equals(readBytes(in), readBytes(file)));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testNestedJars() throws Exception
+    {
+        // STORED jars (JRuby itself) are loaded in place, nothing gets extracted
+        File war = new File(buildDirectory, "nested.war");
+        copyWar(featuresWar, war, Collections.<String, byte[]>emptyMap(), 0);
+        File cache = emptyDirectory("nested-cache");
+        File testFile = testFile("nested-file.tmp");
+        String output = runWar(war, NO_ENV, Arrays.asList("-Dwarbler.debug=true", "-Dwarbler.nested_jars=true",
+                               "-Dwarbler.lazy_extract=true", "-Dwarbler.extract_cache=" + cache),
+                               "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertTrue(output, outputLine(output, "loading nested jars: ").contains("WEB-INF/lib/"));
+        for (String path : listFiles(cache)) {
+            Assert.assertFalse(listFiles(cache).toString(), path.endsWith(".jar"));
+        }
+    }
+
+    @Test
+    public void testProfile() throws Exception
+    {
+        // a JSON report of the start-up phases is written at exit
+        File profile = testFile("profile.json");
+        File testFile = testFile("profile-file.tmp");
+        runWar(testWar, NO_ENV, Arrays.asList("-Dwarbler.profile=" + profile), "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        String json = new String(readBytes(profile), "UTF-8");
+        Assert.assertTrue(json, json.contains("\"launcher\": \"WarMain\""));
+        Matcher total = Pattern.compile("\"total\": ([\\d.]+)").matcher(json);
+        Assert.assertTrue(json, total.find());
+
+        Matcher phase = Pattern.compile("\\{ \"name\": \"(\\w+)\", \"start\": ([\\d.]+), \"time\": ([\\d.]+), " +
+                                        ".*\"complete\": (true|false) \\}").matcher(json);
+        List<String> names = new ArrayList<String>();
+        while (phase.find()) {
+            names.add(phase.group(1));
+            Assert.assertEquals(json, "true", phase.group(4));
+            double end = Double.parseDouble(phase.group(2)) + Double.parseDouble(phase.group(3));
+            Assert.assertTrue(json, end <= Double.parseDouble(total.group(1)) + 0.01); // (rounded) millis
+        }
+        Assert.assertEquals(json, Arrays.asList("extractArchive", "newScriptingContainer", "locateExecutable", "runFromMain"), names);
+    }
+
+    @Test
+    public void testStaleDirectorySweep() throws Exception
+    {
+        // temporary directories of crashed runs get deleted, those in use (locked) are kept
+        File tmpDir = emptyDirectory("sweep-tmp");
+        File outside = testFile("sweep-outside.tmp");
+        writeBytes(outside, "keep".getBytes("UTF-8"));
+        File stale = tempDirectory(tmpDir, "jruby1extract", true);
+        Files.createSymbolicLink(new File(stale, "link.tmp").toPath(), outside.toPath()); // not followed
+        File staleWebroot = tempDirectory(tmpDir, "warbler2webroot", true);
+        File fresh = tempDirectory(tmpDir, "jruby3extract", false); // lock file just created
+        File locked = tempDirectory(tmpDir, "jruby4extract", true);
+        File testFile = testFile("sweep-file.tmp");
+
+        FileChannel channel = new RandomAccessFile(new File(locked, ".lock"), "rw").getChannel();
+        try {
+            FileLock lock = channel.lock();
+            Assert.assertNotNull(lock);
+            runWar(testWar, NO_ENV, Arrays.asList("-Djava.io.tmpdir=" + tmpDir),
+                   "create_test_file[" + testFile + "]");
+        } finally {
+            channel.close();
+        }
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        Assert.assertFalse(stale + " should be deleted", stale.exists());
+        Assert.assertFalse(staleWebroot + " should be deleted", staleWebroot.exists());
+        Assert.assertTrue(outside + " should exist", outside.exists());
+        Assert.assertTrue(fresh + " should exist", fresh.exists());
+        Assert.assertTrue(locked + " should exist", locked.exists());
+        // the run's own (eagerly extracted) directory got deleted on exit
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(fresh.getName(), locked.getName())),
+                            new HashSet<String>(Arrays.asList(tmpDir.list())));
+    }
+
+    /**
+     * Creates a temporary directory, as the launcher does, with a nested file tree.
+     */
+    private static File tempDirectory(File tmpDir, String name, boolean old) throws IOException
+    {
+        File dir = new File(tmpDir, name);
+        File nested = new File(dir, "gems/gems/sample-1.0/lib");
+        nested.mkdirs();
+        writeBytes(new File(nested, "sample.rb"), "# sample".getBytes("UTF-8"));
+        File lockFile = new File(dir, ".lock");
+        writeBytes(lockFile, new byte[0]);
+        if (old) {
+            lockFile.setLastModified(System.currentTimeMillis() - 10 * 60 * 1000);
+        }
+        return dir;
+    }
+
+    @Test
+    public void testNestedWebserverJar() throws Exception
+    {
+        // a STORED webserver.jar is loaded in place
+        File war = new File(buildDirectory, "nested-webserver.war");
+        copyWar(testWar, war, Collections.<String, byte[]>emptyMap(), 0);
+        String output = serveWar(war, Arrays.asList("-Dwarbler.debug=true", "-Dwarbler.nested_jars=true"));
+        Assert.assertTrue(output, output.contains("loading webserver.jar from "));
+    }
+
+    @Test
+    public void testDeflatedWebserverJar() throws Exception
+    {
+        // a DEFLATED webserver.jar can not be loaded in place, it gets extracted instead
+        File war = new File(buildDirectory, "deflated-webserver.war");
+        copyWar(testWar, war, Collections.<String, byte[]>emptyMap(), 0, Collections.singleton("WEB-INF/webserver.jar"));
+        String output = serveWar(war, Arrays.asList("-Dwarbler.debug=true", "-Dwarbler.nested_jars=true"));
+        Assert.assertFalse(output, output.contains("loading webserver.jar from "));
+        Assert.assertTrue(output, output.contains(", extracting"));
+        Assert.assertTrue(output, output.contains("webserver.jar extracted to "));
+    }
+
+    @Test
+    public void testHealthCheck() throws Exception
+    {
+        // the health path answers 503 (booting) till the Rack application is ready
+        int port = freePort();
+        Server server = new Server(featuresWar, Arrays.asList("-Dwarbler.port=" + port));
+        try {
+            Set<Integer> statuses = new TreeSet<Integer>();
+            long deadline = System.currentTimeMillis() + 180 * 1000;
+            while (System.currentTimeMillis() < deadline && server.isRunning() && ! statuses.contains(200)) {
+                try {
+                    statuses.add(Server.get(port, "/health"));
+                } catch (IOException e) {
+                    // not (yet) listening
+                }
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(statuses + "\n" + server.output(), statuses.contains(200));
+            statuses.removeAll(Arrays.asList(200, 503));
+            Assert.assertTrue(statuses + "\n" + server.output(), statuses.isEmpty());
+            Assert.assertEquals(200, Server.get(port, "/"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testHealthFilter() throws Exception
+    {
+        // drives WarblerHealth (from the war) with the servlet API from its webserver.jar
+        URLClassLoader loader = healthLoader();
+        String previous = System.setProperty("warbler.health.path", "/health");
+        try {
+            RackFactory factory = new RackFactory();
+            Object health = startHealth(loader, factory);
+
+            Assert.assertTrue(healthResponse(loader, health, 503).contains("\"status\":\"booting\""));
+            Class<?> configClass = loader.loadClass("javax.servlet.FilterConfig");
+            health.getClass().getMethod("init", configClass).invoke(health, proxy(loader, configClass.getName(), new Stub()));
+            Assert.assertTrue(healthResponse(loader, health, 503).contains("\"status\":\"booting\""));
+            factory.applications.add("application"); // runtimes initialized
+            String json = healthResponse(loader, health, 200);
+            Assert.assertTrue(json, json.contains("\"status\":\"ready\"") && json.contains("\"timeToReady\":"));
+            factory.applications.clear();
+            healthResponse(loader, health, 200); // once ready stays ready
+        } finally {
+            restoreProperty("warbler.health.path", previous);
+        }
+    }
+
+    @Test
+    public void testHealthFilterBootError() throws Exception
+    {
+        // the Rack application failed to boot, JRuby-Rack's factory holds the error and no applications
+        URLClassLoader loader = healthLoader();
+        String previous = System.setProperty("warbler.health.path", "/health");
+        try {
+            RackFactory factory = new RackFactory();
+            factory.applications = null;
+            factory.initError = new RuntimeException("boot raised");
+            Object health = startHealth(loader, factory);
+
+            Class<?> configClass = loader.loadClass("javax.servlet.FilterConfig");
+            health.getClass().getMethod("init", configClass).invoke(health, proxy(loader, configClass.getName(), new Stub()));
+            String json = healthResponse(loader, health, 503);
+            Assert.assertTrue(json, json.contains("\"status\":\"failed\""));
+            Assert.assertFalse(json, json.contains("\"timeToReady\":"));
+        } finally {
+            restoreProperty("warbler.health.path", previous);
+        }
+    }
+
+    /**
+     * @return a loader for WarblerHealth (from the war) with the servlet API from its webserver.jar
+     */
+    private URLClassLoader healthLoader() throws IOException
+    {
+        File webserverJar = testFile("health-webserver.jar");
+        ZipFile zip = new ZipFile(featuresWar);
+        try {
+            InputStream in = zip.getInputStream(zip.getEntry("WEB-INF/webserver.jar"));
+            try {
+                writeBytes(webserverJar, readBytes(in));
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+        return new URLClassLoader(new URL[] {
+            webserverJar.toURI().toURL(), new URL("jar:" + featuresWar.toURI() + "!/WEB-INF/classes/")
+        }, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    /**
+     * Initializes a WarblerHealth context listener, which maps itself as a filter.
+     * @return the (not yet initialized) health filter
+     */
+    private static Object startHealth(ClassLoader loader, final RackFactory factory) throws Exception
+    {
+        final List<String> filters = new ArrayList<String>();
+        final Object registration = proxy(loader, "javax.servlet.FilterRegistration$Dynamic", new Stub());
+        Object context = proxy(loader, "javax.servlet.ServletContext", new Stub() {
+            Object invoke(String method, Object[] args) {
+                if (method.equals("addFilter")) {
+                    filters.add((String) args[0]);
+                    return registration;
+                }
+                return method.equals("getAttribute") && "rack.factory".equals(args[0]) ? factory : null;
+            }
+        });
+        Class<?> contextClass = loader.loadClass("javax.servlet.ServletContext");
+        Object event = loader.loadClass("javax.servlet.ServletContextEvent").getConstructor(contextClass).newInstance(context);
+        Object health = loader.loadClass("WarblerHealth").getConstructor().newInstance();
+        health.getClass().getMethod("contextInitialized", event.getClass()).invoke(health, event);
+        Assert.assertEquals(Arrays.asList("WarblerHealth"), filters);
+        return health;
+    }
+
+    private static void restoreProperty(String name, String previous)
+    {
+        if (previous == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, previous);
+        }
+    }
+
+    /**
+     * JRuby-Rack's (pooling) application factory, as seen by WarblerHealth.
+     */
+    public static class RackFactory
+    {
+        List<Object> applications = new ArrayList<Object>();
+        RuntimeException initError;
+
+        public Collection<Object> getManagedApplications()
+        {
+            return applications;
+        }
+
+        public RuntimeException getInitError()
+        {
+            return initError;
+        }
+    }
+
+    /**
+     * Handles a request to the health filter, asserting the response status.
+     * @return the response body
+     */
+    private static String healthResponse(ClassLoader loader, Object health, int expected) throws Exception
+    {
+        final int[] status = new int[1];
+        final StringWriter body = new StringWriter();
+        Object response = proxy(loader, "javax.servlet.http.HttpServletResponse", new Stub() {
+            Object invoke(String method, Object[] args) {
+                if (method.equals("setStatus")) {
+                    status[0] = (Integer) args[0];
+                }
+                return method.equals("getWriter") ? new PrintWriter(body) : null;
+            }
+        });
+        Object request = proxy(loader, "javax.servlet.ServletRequest", new Stub());
+        Object chain = proxy(loader, "javax.servlet.FilterChain", new Stub() {
+            Object invoke(String method, Object[] args) {
+                throw new AssertionError("health request passed on");
+            }
+        });
+        Method doFilter = null;
+        for (Method method : health.getClass().getMethods()) {
+            if (method.getName().equals("doFilter")) {
+                doFilter = method;
+            }
+        }
+        doFilter.invoke(health, request, response, chain);
+        Assert.assertEquals(body.toString(), expected, status[0]);
+        return body.toString();
+    }
+
+    /**
+     * Implements (servlet API) interfaces, methods return null (or a default value).
+     */
+    static class Stub implements InvocationHandler
+    {
+        Object invoke(String method, Object[] args)
+        {
+            return null;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.getName().equals("equals") ? proxy == args[0] : method.getName().equals("hashCode") ?
+                    System.identityHashCode(proxy) : "Stub";
+            }
+            Object result = invoke(method.getName(), args);
+            if (result == null && method.getReturnType() == Boolean.TYPE) {
+                return false;
+            }
+            if (result == null && method.getReturnType().isPrimitive() && method.getReturnType() != Void.TYPE) {
+                return 0;
+            }
+            return result;
+        }
+    }
+
+    private static Object proxy(ClassLoader loader, String className, InvocationHandler handler) throws ClassNotFoundException
+    {
+        return Proxy.newProxyInstance(loader, new Class<?>[] { loader.loadClass(className) }, handler);
+    }
+
+    @Test
+    public void testDaemonEnvironment() throws Exception
+    {
+        // a forwarded environment is only seen by the command it was forwarded with
+        File war = new File(buildDirectory, "daemon.war");
+        copyWar(testWar, war, Collections.<String, byte[]>emptyMap(), 0);
+        File tmpDir = emptyDirectory("daemon-tmp"); // holds the daemon state
+        Server daemon = new Server(war, Arrays.asList("-Dwarbler.daemon=true", "-Djava.io.tmpdir=" + tmpDir));
+        try {
+            // the daemon is listening once its state file (e.g. daemon.war-...-....daemon) got moved in place
+            File stateDir = new File(tmpDir, "warbler-" + System.getProperty("user.name"));
+            long deadline = System.currentTimeMillis() + 180 * 1000;
+            while (!listFiles(stateDir).toString().contains(war.getName()) && System.currentTimeMillis() < deadline && daemon.isRunning()) {
+                Thread.sleep(250);
+            }
+            Assert.assertTrue(listFiles(stateDir).toString(), daemon.isRunning() && listFiles(stateDir).toString().contains(war.getName()));
+
+            List<String> jvmArgs = Arrays.asList("-Dwarbler.daemon=true", "-Dwarbler.daemon.env=true",
+                                                 "-Djava.io.tmpdir=" + tmpDir, "-Dwarbler.debug=true");
+            String first = runWar(war, Collections.singletonMap("WARBLER_TEST_FIRST", "first"), jvmArgs, "print_env");
+            Assert.assertTrue(first, first.contains("forwarding command to daemon"));
+            Assert.assertTrue(first, first.contains("WARBLER_TEST_FIRST=first"));
+            Assert.assertFalse(first, first.contains("WARBLER_TEST_SECOND"));
+
+            String second = runWar(war, Collections.singletonMap("WARBLER_TEST_SECOND", "second"), jvmArgs, "print_env");
+            Assert.assertTrue(second, second.contains("forwarding command to daemon"));
+            Assert.assertTrue(second, second.contains("WARBLER_TEST_SECOND=second"));
+            Assert.assertFalse(second, second.contains("WARBLER_TEST_FIRST"));
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Starts the war's webserver, waits till the application responds and stops it.
+     * @return the (standard and error) output
+     */
+    static String serveWar(File war, List<String> jvmArgs) throws Exception
+    {
+        int port = freePort();
+        List<String> args = new ArrayList<String>(jvmArgs);
+        args.add("-Dwarbler.port=" + port);
+        Server server = new Server(war, args);
+        try {
+            Assert.assertEquals(server.output(), 200, server.waitForResponse(port, "/", 200));
+        } finally {
+            server.stop();
+        }
+        return server.output();
+    }
+
+    static int freePort() throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A running <code>java [jvmArgs] -jar war</code> webserver.
+     */
+    static class Server
+    {
+        private final Process process;
+        private final StringBuffer output = new StringBuffer();
+        private final Thread reader;
+
+        Server(File war, List<String> jvmArgs) throws IOException
+        {
+            List<String> command = new ArrayList<String>();
+            command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+            command.addAll(jvmArgs);
+            command.add("-jar");
+            command.add(war.getPath());
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(war.getParentFile());
+            builder.redirectErrorStream(true);
+            process = builder.start();
+            process.getOutputStream().close();
+            reader = new Thread() {
+                public void run() {
+                    try {
+                        output.append(readFully(process.getInputStream()));
+                    } catch (IOException e) {
+                        output.append(e);
+                    }
+                }
+            };
+            reader.start();
+        }
+
+        /**
+         * Requests the path till the response has the expected status (or the server exits).
+         * @return the last response status, -1 if the server never responded
+         */
+        int waitForResponse(int port, String path, int expected) throws Exception
+        {
+            long deadline = System.currentTimeMillis() + 180 * 1000;
+            int status = -1;
+            while (System.currentTimeMillis() < deadline && isRunning()) {
+                try {
+                    status = get(port, path);
+                    if (status == expected) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // not (yet) listening
+                }
+                Thread.sleep(250);
+            }
+            return status;
+        }
+
+        /**
+         * @return the response status
+         */
+        static int get(int port, String path) throws IOException
+        {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(30 * 1000);
+            try {
+                return connection.getResponseCode();
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        boolean isRunning()
+        {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        void stop() throws InterruptedException
+        {
+            process.destroy();
+            process.waitFor();
+            reader.join(10 * 1000);
+        }
+
+        String output()
+        {
+            return output.toString();
+        }
+    }
+
+    @Test
+    public void testExtractCacheEviction() throws Exception
+    {
+        // the cache directory of a previous version of the war gets deleted
+        File cache = emptyDirectory("evict-cache");
+        File war = new File(buildDirectory, "evict.war");
+        copyWar(testWar, war, Collections.<String, byte[]>emptyMap(), 0);
+        File testFile = testFile("evict-file.tmp");
+        runWar(war, NO_ENV, Arrays.asList("-Dwarbler.extract_cache=" + cache), "create_test_file[" + testFile + "]");
+        String[] previous = cache.list();
+        Assert.assertEquals(Arrays.toString(previous), 1, previous.length);
+
+        copyWar(testWar, war, Collections.<String, byte[]>emptyMap(), 1); // an updated war
+        testFile.delete();
+        runWar(war, NO_ENV, Arrays.asList("-Dwarbler.extract_cache=" + cache), "create_test_file[" + testFile + "]");
+        Assert.assertTrue(testFile + " should exist", testFile.exists());
+        String[] current = cache.list();
+        Assert.assertEquals(Arrays.toString(current), 1, current.length);
+        Assert.assertFalse(current[0].equals(previous[0]));
+    }
+
+    private File emptyDirectory(String name)
+    {
+        File dir = new File(buildDirectory, name);
+        delete(dir);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return (base) names of all files below the directory
+     */
+    static List<String> listFiles(File dir)
+    {
+        List<String> names = new ArrayList<String>();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    names.addAll(listFiles(child));
+                } else {
+                    names.add(child.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the path an entry gets extracted to (relative to the extraction root)
+     */
+    private static String extractPath(String name)
+    {
+        if (name.startsWith("WEB-INF/")) {
+            return name.substring("WEB-INF/".length());
+        }
+        return name.indexOf('/') == -1 ? "public/" + name : name;
+    }
+
+    private File testFile(String name)
+    {
+        File file = new File(buildDirectory, name);
+        file.delete();
+        return file;
+    }
+
+    static final Map<String, String> NO_ENV = Collections.emptyMap();
+
+    /**
+     * Runs <code>java [jvmArgs] -jar war -S rake [rakeArgs]</code> (with additional environment
+     * variables) and asserts it exits successfully.
+     * @return the (standard and error) output
+     */
+    static String runWar(File war, Map<String, String> env, List<String> jvmArgs, String... rakeArgs) throws Exception
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArgs);
+        command.add("-jar");
+        command.add(war.getPath());
+        command.add("-S");
+        command.add("rake");
+        command.addAll(Arrays.asList(rakeArgs));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(war.getParentFile());
+        builder.environment().putAll(env);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        process.getOutputStream().close();
+        String output = readFully(process.getInputStream());
+        Assert.assertEquals(command + " failed:\n" + output, 0, process.waitFor());
+        return output;
+    }
+
+    /**
+     * Copies a war (all entries STORED) replacing (or adding) the given entries and
+     * adding the given number of (empty) entries.
+     */
+    static void copyWar(File source, File target, Map<String, byte[]> replace, int extraEntries) throws IOException
+    {
+        copyWar(source, target, replace, extraEntries, Collections.<String>emptySet());
+    }
+
+    /**
+     * Copies a war as above, except for the given (DEFLATED) entries.
+     */
+    static void copyWar(File source, File target, Map<String, byte[]> replace, int extraEntries,
+                        Set<String> deflated) throws IOException
+    {
+        ZipFile zip = new ZipFile(source);
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try {
+            Map<String, byte[]> added = new LinkedHashMap<String, byte[]>(replace);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (added.containsKey(entry.getName())) {
+                    putEntry(out, entry.getName(), added.remove(entry.getName()), deflated);
+                    continue;
+                }
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    putEntry(out, entry.getName(), readBytes(in), deflated);
+                } finally {
+                    in.close();
+                }
+            }
+            for (Map.Entry<String, byte[]> entry : added.entrySet()) {
+                putEntry(out, entry.getKey(), entry.getValue(), deflated);
+            }
+            for (int i = 0; i < extraEntries; i++) {
+                putStoredEntry(out, "META-INF/extra/" + i + ".txt", new byte[0]);
+            }
+        } finally {
+            out.close();
+            zip.close();
+        }
+    }
+
+    /**
+     * @return the war's launcher (META-INF/warbler.properties) properties
+     */
+    static Properties launcherProperties(File war) throws IOException
+    {
+        Properties props = new Properties();
+        ZipFile zip = new ZipFile(war);
+        try {
+            ZipEntry entry = zip.getEntry("META-INF/warbler.properties");
+            if (entry != null) {
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return props;
+    }
+
+    static byte[] toBytes(Properties props) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        props.store(out, null);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the (first) output line starting with the given prefix
+     */
+    static String outputLine(String output, String prefix)
+    {
+        for (String line : output.split("\r?\n")) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        Assert.fail("no line starting with '" + prefix + "' in:\n" + output);
+        return null;
+    }
+
+    private static void putEntry(ZipOutputStream out, String name, byte[] bytes, Set<String> deflated) throws IOException
+    {
+        if (deflated.contains(name)) {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.DEFLATED);
+            out.putNextEntry(entry);
+            out.write(bytes);
+            out.closeEntry();
+        } else {
+            putStoredEntry(out, name, bytes);
+        }
+    }
+
+    private static void putStoredEntry(ZipOutputStream out, String name, byte[] bytes) throws IOException
+    {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readBytes(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readBytes(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeBytes(File file, byte[] bytes) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException
+    {
+        return new String(readBytes(in), "UTF-8");
+    }
+}
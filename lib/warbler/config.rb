@@ -6,6 +6,7 @@
 #++
 
 require 'set'
+require 'ostruct'
 require 'warbler/gems'
 require 'warbler/traits'
 
@@ -17,6 +18,7 @@ module Warbler
     TOP_DIRS = %w(app db config lib log script vendor)
     FILE = "config/warble.rb"
     BUILD_GEMS = %w(warbler rake rcov)
+    COMPRESSED_ENTRIES = '*.{jar,gem,zip,gz,tgz,bz2,xz,7z,png,jpg,jpeg,gif,webp,ico,woff,woff2,mp3,mp4,webm,pdf}'
 
     include Traits
 
@@ -105,6 +107,14 @@ module Warbler
     # Defaults to ["development", "test", "assets"].
     attr_accessor :bundle_without
 
+    # If set to true, the load path Bundler would set up (along with the activated gems)
+    # is resolved when the archive gets built and packaged as a standalone bundler/setup.rb
+    # (next to the Gemfile, in .bundle/standalone) which the init file requires, thus booting
+    # does not need to Bundler.setup (re-reading the lockfile and resolving gems). Use
+    # <tt>-Dwarbler.bundler.setup=true</tt> at runtime to set-up Bundler as usual.
+    # Defaults to false.
+    attr_accessor :frozen_load_path
+
     # Use JBundler to locate gems if Jarfile is found. Default is true.
     attr_accessor :jbundler
 
@@ -172,12 +182,88 @@ module Warbler
 
     # Embedded webserver to use. Currently supported webservers are:
     # * <tt>jetty</tt> - Embedded Jetty from Eclipse
+    # * <tt>jetty-virtual</tt> - Embedded Jetty (10) running requests on virtual threads
+    #   when the JVM supports them (Java 21+)
+    # * <tt>tomcat</tt> - Embedded Tomcat (using webapp-runner)
     attr_accessor :webserver
 
+    # Tuning for the embedded webserver (executable feature), written into the
+    # generated WEB-INF/webserver.xml. Each setting might also be overridden at
+    # runtime using the system property in parenthesis (e.g. -Djetty.threads.max=50) :
+    #
+    # * <tt>webserver_options.min_threads</tt> -- (<tt>jetty.threads.min</tt>) minimum request threads
+    # * <tt>webserver_options.max_threads</tt> -- (<tt>jetty.threads.max</tt>) maximum request threads
+    # * <tt>webserver_options.idle_timeout</tt> -- (<tt>jetty.http.idleTimeout</tt>) connection idle
+    #   timeout in milliseconds
+    # * <tt>webserver_options.acceptors</tt> -- (<tt>jetty.http.acceptors</tt>) acceptor threads
+    # * <tt>webserver_options.selectors</tt> -- (<tt>jetty.http.selectors</tt>) selector threads
+    # * <tt>webserver_options.output_buffer_size</tt> -- (<tt>jetty.output.buffer.size</tt>) response
+    #   buffer size in bytes
+    # * <tt>webserver_options.request_header_size</tt> -- (<tt>jetty.request.header.size</tt>) maximum
+    #   request header size in bytes
+    # * <tt>webserver_options.gzip</tt> -- set to true to compress responses (using a GzipHandler),
+    #   <tt>webserver_options.gzip_min_size</tt> (<tt>jetty.gzip.min.size</tt>) sets the minimum size
+    # * <tt>webserver_options.health_path</tt> -- (<tt>warbler.health.path</tt>) path of a health
+    #   check (e.g. '/health') answering 503 until the application booted (or when it failed
+    #   to boot), with boot timings and runtime stats as JSON (also available with Tomcat)
+    #
+    # Unset values use Jetty's defaults.
+    attr_accessor :webserver_options
+
     # If set to true, Warbler will move jar files into the WEB-INF/lib directory of the
     # created war file. This may be needed for some web servers. Defaults to false.
     attr_accessor :move_jars_to_webinf_lib
 
+    # If set to true, jar files (such as the JRuby jars, WEB-INF/lib jars and the
+    # webserver jar) are stored uncompressed in the archive, the launcher is then able
+    # to copy (or load) them as is without inflating. Defaults to false.
+    attr_accessor :store_jars
+
+    # Number of threads compressing archive entries concurrently (under JRuby),
+    # 0 to use all available processors. Defaults to 1 (a single thread).
+    attr_accessor :archive_threads
+
+    # Compression policy for archive entries, a hash of entry patterns (globs as
+    # for File.fnmatch or regexps) to compression levels : 0 (or :stored) stores
+    # entries uncompressed, 1-9 deflates them at the given level. The first
+    # matching pattern applies, other entries use the default level. For instance
+    # <tt>{ Warbler::Config::COMPRESSED_ENTRIES => :stored, '*' => 9 }</tt> stores
+    # already compressed content (jars, gems, images, fonts) as is.
+    attr_accessor :compression
+
+    # If set to true, an existing archive is rebuilt incrementally (under JRuby) :
+    # compressed data of entries that did not change gets copied over as is, unless
+    # their compression (stored, fast, normal or maximum) changed. Switching between
+    # levels 3-7 is not detected, delete the archive for a full rebuild.
+    # Defaults to false.
+    attr_accessor :incremental_archive
+
+    # Array of JVM options (e.g. <tt>-Xmx1g</tt>) for runnable archives. When set the
+    # launcher (JarMain/WarMain) re-executes itself in a child JVM using these options,
+    # as <tt>java -jar</tt> has no way of passing them otherwise. Defaults to empty.
+    attr_accessor :jvm_options
+
+    # If set to true, a runnable archive relaunches itself (see #jvm_options) using an
+    # application class data sharing archive : the first run dumps the loaded classes,
+    # later runs map them instead of loading from the jars. Needs Java 13+ and the
+    # launcher's extraction cache (<tt>-Dwarbler.extract_cache=dir</tt>) at runtime.
+    # Defaults to false.
+    attr_accessor :class_data_sharing
+
+    # If set to true, a runnable war running an executable (<tt>java -jar app.war -S rake</tt>)
+    # only extracts the jars, the application and gems get loaded from the archive
+    # (using uri:classloader:) as needed. The archive's WEB-INF directories are indexed
+    # (with .jrubydir entries) for that. Might be turned off at runtime using
+    # <tt>-Dwarbler.lazy_extract=false</tt>. Defaults to false.
+    attr_accessor :lazy_extract
+
+    # Hash of JRuby options for runnable archives, applied by the launcher (as
+    # system properties) before the runtime boots e.g. <tt>'compile.mode' => 'JIT'</tt>,
+    # <tt>'jit.threshold' => 20</tt> or <tt>'compile.invokedynamic' => true</tt>.
+    # Keys might omit the 'jruby.' prefix. Values passed on the command line
+    # (<tt>java -Djruby.jit.threshold=0 -jar ...</tt>) take precedence.
+    attr_accessor :jruby_properties
+
     # These file will be placed in the META-INF directory of the jar or war that warbler
     # produces. They are primarily used as launchers by the runnable feature.
     attr_accessor :script_files
@@ -210,6 +296,15 @@ module Warbler
       @script_files      = []
       @warbler_scripts = "#{WARBLER_HOME}/lib/warbler/scripts"
       @move_jars_to_webinf_lib = false
+      @store_jars        = false
+      @archive_threads   = 1
+      @incremental_archive = false
+      @frozen_load_path  = false
+      @jvm_options       = []
+      @class_data_sharing = false
+      @lazy_extract      = false
+      @jruby_properties  = {}
+      @webserver_options = OpenStruct.new
       @compile_gems      = false
 
       before_configure
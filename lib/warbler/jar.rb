@@ -22,6 +22,7 @@ module Warbler
     include PlatformHelper
 
     DEFAULT_MANIFEST = %{Manifest-Version: 1.0\nCreated-By: Warbler #{Warbler::VERSION}\n\n}
+    LAUNCHER_PROPERTIES = 'META-INF/warbler.properties'
 
     attr_reader :files
     attr_reader :app_filelist
@@ -156,6 +157,7 @@ module Warbler
       add_manifest(config)
       add_init_file(config)
       add_script_files(config)
+      add_launcher_properties(config)
       apply_traits(config)
     end
 
@@ -167,13 +169,29 @@ module Warbler
         path = "#{config_or_path.jar_name}.#{config_or_path.jar_extension}"
         path = File.join(config_or_path.autodeploy_dir, path) if config_or_path.autodeploy_dir
       end
-      rm_f path
+      options = Warbler::Config === config_or_path ? archive_options(config_or_path) : {}
+      if Warbler::Config === config_or_path && config_or_path.incremental_archive && File.file?(path)
+        options['previous'] = "#{path}.previous" # reuse its unchanged entries
+        File.rename(path, options['previous'])
+      else
+        rm_f path
+      end
       ensure_directory_entries
       if Warbler::Config === config_or_path
         @files.delete("#{config_or_path.jar_name}/#{path}")
+        add_directory_indexes if config_or_path.lazy_extract
       end
       puts "Creating #{path}" unless silent?
-      create_jar path, @files
+      begin
+        options.empty? ? create_jar(path, @files) : create_jar(path, @files, options)
+      rescue Exception
+        if options['previous'] # keep the previous archive around for the next run
+          rm_f path
+          File.rename(options['previous'], path)
+        end
+        raise
+      end
+      rm_f options['previous'] if options['previous']
     end
 
     # Invoke a hook to allow the project traits to add or modify the archive contents.
@@ -205,7 +223,14 @@ module Warbler
     # Add gems to WEB-INF/gems
     def find_gems_files(config)
       unless @compiled && config.compile_gems
-        config.gems.specs(config.gem_dependencies).each {|spec| find_single_gem_files(config, spec) }
+        specs = config.gems.specs(config.gem_dependencies)
+        begin
+          # walk all gem directories up-front (in parallel) using Java
+          @gem_dir_files = find_files(specs.map { |spec| spec.full_gem_path }) if respond_to?(:find_files)
+          specs.each {|spec| find_single_gem_files(config, spec) }
+        ensure
+          @gem_dir_files = nil
+        end
       end
     end
 
@@ -229,11 +254,51 @@ module Warbler
       end
 
       @files[apply_pathmaps(config, "#{spec.full_name}.gemspec", :gemspecs)] = StringIO.new(spec.to_ruby)
-      FileList["#{full_gem_path.to_s}/**/*"].each do |src|
-        f = Pathname.new(src).relative_path_from(full_gem_path).to_s
+      gem_dir_files(full_gem_path).each do |src, f|
         next if config.gem_excludes && config.gem_excludes.any? {|rx| f =~ rx }
         @files[apply_pathmaps(config, File.join(spec.full_name, f), :gems)] = src
       end
+      add_gem_executables(config, spec)
+    end
+
+    # Files (and directories) of a gem, as pairs of the path and the path relative
+    # to the gem directory.
+    def gem_dir_files(full_gem_path)
+      gem_path = full_gem_path.to_s
+      if @gem_dir_files && (found = @gem_dir_files[gem_path])
+        found.map { |f| [ "#{gem_path}/#{f}", f ] }.reject { |src, _| default_excluder.excluded_from_list?(src) }
+      else
+        FileList["#{gem_path}/**/*"].map { |src| [ src, Pathname.new(src).relative_path_from(full_gem_path).to_s ] }
+      end
+    end
+    private :gem_dir_files
+
+    # Index gem executables (to their archive entry), letting `java -jar app.war -S rake`
+    # skip scanning the installed specifications (first gem providing an executable wins).
+    # With several versions of a gem packaged, the executable of the activated (Bundler
+    # locked) version is used, otherwise the one of the highest version (as RubyGems does).
+    def add_gem_executables(config, spec)
+      spec.executables.each do |exe|
+        entry = apply_pathmaps(config, File.join(spec.full_name, spec.bindir, exe), :gems)
+        next unless @files.key?(entry)
+        current = gem_executables[exe]
+        gem_executables[exe] = [ spec, entry ] if current.nil? || preferred_gem_version?(spec, current.first)
+      end
+    end
+    private :add_gem_executables
+
+    def preferred_gem_version?(spec, other)
+      return false unless spec.name == other.name
+      if activated = Gem.loaded_specs[spec.name]
+        return spec.version == activated.version && other.version != activated.version
+      end
+      spec.version > other.version
+    end
+    private :preferred_gem_version?
+
+    # Gem executable names to the spec and archive entry providing them.
+    def gem_executables
+      @gem_executables ||= {}
     end
 
     # Add all application directories and files to the archive.
@@ -248,8 +313,25 @@ module Warbler
       @app_filelist = FileList[*(config.dirs.map{|d| %W{#{d}/**/*/**/* #{d}/*}}.flatten)]
       @app_filelist.include *(config.includes.to_a)
       @app_filelist.exclude *(config.excludes.to_a)
-      @app_filelist.map {|f| add_with_pathmaps(config, f, :application) }
+      app_files = respond_to?(:find_files) ? find_app_files(config) : @app_filelist
+      app_files.map {|f| add_with_pathmaps(config, f, :application) }
+    end
+
+    # The files #app_filelist resolves to, with application directories walked
+    # (in parallel) using Java instead of globbing.
+    def find_app_files(config)
+      dirs = config.dirs.select { |d| File.directory?(d) }
+      found = find_files(dirs)
+      files = dirs.map { |d| found[d].map { |f| "#{d}/#{f}" } }.flatten
+      files.concat FileList[*config.includes.to_a].to_a unless config.includes.to_a.empty?
+      files.reject { |f| @app_filelist.excluded_from_list?(f) }.uniq
     end
+    private :find_app_files
+
+    def default_excluder
+      @default_excluder ||= FileList[]
+    end
+    private :default_excluder
 
     # Add init.rb file to the war file.
     def add_init_file(config)
@@ -274,10 +356,68 @@ module Warbler
       end
     end
 
+    # Add launcher (JarMain/WarMain) options, such as JVM options to relaunch
+    # with, to META-INF/warbler.properties.
+    def add_launcher_properties(config)
+      props = launcher_properties(config)
+      return if props.empty?
+      contents = props.map { |key, value| "#{escape_property(key)}=#{escape_property(value)}\n" }
+      @files[LAUNCHER_PROPERTIES] = StringIO.new(contents.join)
+    end
+
+    def launcher_properties(config)
+      props = {}
+      jvm_options = Array(config.jvm_options).map(&:to_s)
+      props['jvm.options'] = jvm_options.join("\n") unless jvm_options.empty?
+      props['jvm.cds'] = 'true' if config.class_data_sharing
+      props['lazy_extract'] = 'true' if config.lazy_extract
+      if config.features.include?('executable') || config.features.include?('runnable')
+        gem_executables.each { |exe, (_, entry)| props["executable.#{exe}"] = entry }
+      end
+      (config.jruby_properties || {}).each do |key, value|
+        key = key.to_s
+        props[key.start_with?('jruby.') ? key : "jruby.#{key}"] = value.to_s
+      end
+      props
+    end
+    private :launcher_properties
+
+    def escape_property(str)
+      str.to_s.gsub(/[\\:=#! \t\r\n]/) do |c|
+        case c
+        when "\t" then '\t'
+        when "\r" then '\r'
+        when "\n" then '\n'
+        else "\\#{c}"
+        end
+      end.gsub(/[^\x00-\x7e]/) { |c| c.unpack('U*').map { |u| '\u%04x' % u }.join }
+    end
+    private :escape_property
+
     def add_with_pathmaps(config, f, map_type)
       @files[apply_pathmaps(config, f, map_type)] = f
     end
 
+    # Add a launcher class (e.g. JarMain) from the Warbler jar to the root of
+    # the archive (or the given path), along with any nested classes it needs
+    # (JarMain$*.class).
+    def add_launcher_class(klass, warbler_jar = WARBLER_JAR, path = '')
+      klass = klass.sub('.class', '')
+      names = launcher_class_entries(warbler_jar).select do |name|
+        name == "#{klass}.class" || name.start_with?("#{klass}$")
+      end
+      names = [ "#{klass}.class" ] if names.empty?
+      names.each { |name| @files["#{path}#{name}"] = entry_in_jar(warbler_jar, name) }
+    end
+
+    def launcher_class_entries(warbler_jar)
+      @launcher_class_entries ||= {}
+      @launcher_class_entries[warbler_jar] ||= ZipSupport.open(warbler_jar) do |zf|
+        zf.entries.map { |entry| entry.name }.grep(/\.class$/)
+      end
+    end
+    private :launcher_class_entries
+
     def expand_erb(file, config)
       require 'erb'
       erb = ERB.new(File.read(file), nil, '-')
@@ -299,12 +439,71 @@ module Warbler
       end
     end
 
-    def create_jar(jar_path, entries)
+    # Index the (WEB-INF) application directories using .jrubydir entries, for
+    # JRuby to list and glob them through uri:classloader: (see Config#lazy_extract).
+    def add_directory_indexes(root = 'WEB-INF')
+      dirs = Hash.new { |hash, dir| hash[dir] = [] }
+      @files.each do |entry, src|
+        next unless entry == root || entry.start_with?("#{root}/")
+        parts = entry.split('/')
+        next if parts.last == '.jrubydir'
+        dirs[parts.join('/')] if src.nil? # (empty) directory
+        (1...parts.size).each { |i| dirs[parts[0, i].join('/')] << parts[i] }
+      end
+      dirs.each do |dir, names|
+        @files["#{dir}/.jrubydir"] = StringIO.new(([ '.' ] + names.uniq.sort).map { |name| "#{name}\n" }.join)
+      end
+    end
+
+    # Options for #create_jar : the compression 'levels' for entries (a level
+    # of 0 means the entry is stored uncompressed, see Config#compression) and
+    # the number of compression 'threads'.
+    def archive_options(config)
+      levels = {}
+      if config.store_jars
+        @files.each { |entry, src| levels[entry] = 0 if src && entry =~ /\.jar$/ }
+      end
+      if config.compression && ! config.compression.empty?
+        policy = config.compression.map { |pattern, level| [ pattern, compression_level(level) ] }
+        @files.each do |entry, src|
+          next if src.nil? || levels.key?(entry)
+          _, level = policy.detect { |pattern, _| compression_match?(pattern, entry) }
+          levels[entry] = level if level
+        end
+      end
+      options = levels.empty? ? {} : { 'levels' => levels }
+      threads = config.archive_threads
+      options['threads'] = threads.to_i if threads && threads.to_i != 1
+      options
+    end
+
+    def compression_level(level)
+      return 0 if level == :stored || level == :store
+      unless level.is_a?(Integer) && level >= 0 && level <= 9
+        raise ArgumentError, "invalid compression level #{level.inspect} (expected 0-9 or :stored)"
+      end
+      level
+    end
+
+    def compression_match?(pattern, entry)
+      if pattern.is_a?(Regexp)
+        pattern =~ entry
+      else
+        File.fnmatch(pattern.to_s, entry, File::FNM_EXTGLOB | File::FNM_DOTMATCH)
+      end
+    end
+    private :compression_level, :compression_match?
+
+    def create_jar(jar_path, entries, options = {})
+      levels = options['levels'] || {}
       ZipSupport.create(jar_path) do |zipfile|
         entries.keys.sort.each do |entry|
           src = entries[entry]
-          if src.respond_to?(:read)
-            zipfile.get_output_stream(entry) { |f| f << src.read }
+          if levels[entry] == 0 && src.is_a?(String) && File.file?(src)
+            stored = Zip::Entry.new(zipfile.name, entry, '', '', 0, 0, Zip::Entry::STORED)
+            zipfile.add(stored, src)
+          elsif src.respond_to?(:read)
+            zipfile.get_output_stream(entry) { |f| IO.copy_stream(src, f) }
           elsif src.nil? || File.directory?(src)
             if File.symlink?(entry) && ! defined?(JRUBY_VERSION)
               warn "directory symlinks are not followed unless using JRuby; " +
@@ -323,13 +522,26 @@ module Warbler
     end
 
     def entry_in_jar(jar, entry)
+      open_entry_in_jar(jar, entry) { |io| StringIO.new(io.read) }
+    end
+
+    # Open an entry in a jar as an IO, unlike #entry_in_jar the contents are
+    # streamed (not read up-front) when a block is given. The IO is closed
+    # once the block returns, without a block the contents are read up-front.
+    def open_entry_in_jar(jar, entry, &block)
+      return entry_in_jar(jar, entry) unless block
       ZipSupport.open(jar) do |zf|
-        zf.get_input_stream(entry) {|io| StringIO.new(io.read) }
+        io = zf.get_input_stream(entry)
+        begin
+          yield io
+        ensure
+          io.close
+        end
       end
     end
 
-    # Java-boosted jar creation for JRuby; replaces #create_jar and
-    # #entry_in_jar with Java version
+    # Java-boosted jar creation for JRuby; replaces #create_jar,
+    # #entry_in_jar and #open_entry_in_jar with Java version
     require 'warbler_jar' if defined?(JRUBY_VERSION) && JRUBY_VERSION >= "1.5"
   end
 
@@ -14,6 +14,9 @@ module Warbler
       include PathmapHelper
       include BundlerHelper
 
+      # Standalone bundler/setup.rb location (relative to the Gemfile) with a frozen load path.
+      STANDALONE_DIR = '.bundle/standalone'
+
       def self.detect?
         File.exist?(ENV['BUNDLE_GEMFILE'] || 'Gemfile')
       end
@@ -35,6 +38,10 @@ module Warbler
         # config.gems.clear allow to add `config.gems` on top of those bundled
         config.gem_dependencies = false # Bundler takes care of these
         config.bundler = {} if config.bundler == true
+        if config.frozen_load_path
+          config.bundler[:load_path] = []
+          config.bundler[:loaded_specs] = []
+        end
 
         bundler_specs.each do |spec|
           spec = to_spec(spec)
@@ -54,6 +61,7 @@ module Warbler
             spec.loaded_from = full_gem_path.join('bundler.gemspec').to_s
             spec.full_gem_path = full_gem_path.to_s
           end
+          add_frozen_load_path(spec) if config.bundler[:load_path] && ! spec.groups.include?(:warbler_excluded)
 
           case spec.source
           when ::Bundler::Source::Git
@@ -97,6 +105,12 @@ module Warbler
         if File.exist?(lockfile)
           jar.files[apply_pathmaps(config, lockfile, :application)] = config.bundler[:lockfile].to_s
         end
+        if config.bundler[:load_path]
+          setup = File.join(STANDALONE_DIR, 'bundler/setup.rb')
+          setup = File.join(File.dirname(gemfile.to_s), setup) unless File.dirname(gemfile.to_s) == '.'
+          jar.files[apply_pathmaps(config, setup, :application)] =
+            jar.expand_erb("#{config.warbler_templates}/bundler_setup.erb", config)
+        end
         if config.bundler[:git_specs]
           pathmap = "#{config.relative_gem_path}/bundler/gems/%p"
           pathmap.sub!(%r{^/+}, '')
@@ -149,6 +163,29 @@ module Warbler
         requested + excluded_git_specs
       end
 
+      # Record the (archive) load path for a bundled spec : relative to GEM_HOME for
+      # installed and git gems, relative to the application root for path gems.
+      def add_frozen_load_path(spec)
+        full_gem_path = Pathname.new(spec.full_gem_path)
+        case spec.source
+        when ::Bundler::Source::Git
+          base = 'gem_home'
+          gem_path = "bundler/gems/#{full_gem_path.relative_path_from(Pathname.new(::Bundler.install_path))}"
+        when ::Bundler::Source::Path
+          return if bundler_source_is_warbled_gem_itself?(spec.source) || ! spec.source.path.relative?
+          base = 'app_root'
+          gem_path = relative_from_pwd(full_gem_path).to_s
+        else
+          return unless full_gem_path.exist? # default gem (part of jruby-jars)
+          base = 'gem_home'
+          gem_path = "gems/#{spec.full_name}"
+          config.bundler[:loaded_specs] << spec.full_name
+        end
+        spec.require_paths.each do |path|
+          config.bundler[:load_path] << [ base, File.join(gem_path, path) ]
+        end
+      end
+
       def bundler_source_is_warbled_gem_itself?(source)
         source.path.to_s == '.'
       end
@@ -37,7 +37,7 @@ module Warbler
           manifest = Warbler::Jar::DEFAULT_MANIFEST.chomp + "Main-Class: JarMain\n"
           jar.files['META-INF/MANIFEST.MF'] = StringIO.new(manifest)
         end
-        jar.files['JarMain.class'] = jar.entry_in_jar(WARBLER_JAR, "JarMain.class")
+        jar.add_launcher_class('JarMain')
       end
 
       def default_pathmaps
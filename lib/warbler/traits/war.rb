@@ -91,6 +91,7 @@ module Warbler
       # Add web.xml and other WEB-INF configuration files from
       # config.webinf_files to the war file.
       def add_webxml(jar)
+        add_health_listener if health_check?
         config.webinf_files.each do |wf|
           if wf =~ /\.erb$/
             jar.files[apply_pathmaps(config, wf, :webinf)] = jar.expand_erb(wf, config)
@@ -107,14 +108,28 @@ module Warbler
           jar.files['META-INF/MANIFEST.MF'] = StringIO.new(manifest)
         end
         [ 'JarMain', 'WarMain', main_class ].uniq.each do |klass|
-          jar.files["#{klass}.class"] = jar.entry_in_jar(WARBLER_JAR, "#{klass}.class")
+          jar.add_launcher_class(klass)
         end
       end
 
       def add_executables(jar)
         webserver = WEB_SERVERS[config.webserver.to_s]
-        webserver.add(jar)
+        webserver.add(jar, config)
         add_runnables jar, webserver.main_class || 'WarMain'
+        jar.add_launcher_class(HEALTH_LISTENER, WARBLER_JAR, 'WEB-INF/classes/') if health_check?
+      end
+
+      HEALTH_LISTENER = 'WarblerHealth'
+
+      # Health check for the embedded webserver (see Config#webserver_options).
+      def health_check?
+        config.features.include?('executable') && config.webserver_options && config.webserver_options.health_path
+      end
+
+      # The listener goes first (mapping its filter ahead of the Rack filter)
+      def add_health_listener
+        listeners = config.webxml.servlet_context_listeners
+        listeners.unshift(HEALTH_LISTENER) unless listeners.include?(HEALTH_LISTENER)
       end
 
       def add_gemjar(jar)
@@ -1,3 +1,5 @@
+require 'ostruct'
+
 module Warbler
   class WebServer
     class Artifact < Struct.new(:repo, :group_id, :artifact_id, :version)
@@ -77,36 +79,66 @@ module Warbler
 
     end
 
-    def add(jar)
+    HEALTH_PATH_PROPERTY = 'warbler.health.path'
+
+    def add(jar, config = nil)
       jar.files["WEB-INF/webserver.jar"] = @artifact.local_path
     end
 
     def main_class
       'WarMain.class'
     end
+
+    protected
+
+    # System properties for the WarblerHealth listener (see Config#webserver_options).
+    def health_properties(options)
+      options && options.health_path ? { HEALTH_PATH_PROPERTY => options.health_path } : {}
+    end
   end
 
   class JettyServer < WebServer
+    # System properties the generated webserver.xml reads, mapped to the
+    # config.webserver_options they are set from and the Jetty defaults.
+    TUNING_PROPERTIES = {
+      'jetty.threads.min'         => [ :min_threads, 8 ],
+      'jetty.threads.max'         => [ :max_threads, 200 ],
+      'jetty.http.idleTimeout'    => [ :idle_timeout, 30000 ],
+      'jetty.http.acceptors'      => [ :acceptors, -1 ],
+      'jetty.http.selectors'      => [ :selectors, -1 ],
+      'jetty.output.buffer.size'  => [ :output_buffer_size, 32768 ],
+      'jetty.request.header.size' => [ :request_header_size, 8192 ],
+      'jetty.gzip.min.size'       => [ :gzip_min_size, 256 ]
+    }
+
     def initialize
       @artifact = Artifact.new(ENV["MAVEN_REPO"] || "http://repo2.maven.org/maven2",
                                "org.eclipse.jetty", "jetty-runner",
                                ENV["WEBSERVER_VERSION"] || "9.2.9.v20150224")
     end
 
-    def add(jar)
-      super
-      jar.files["WEB-INF/webserver.xml"] ||= StringIO.new(<<-CONFIG)
-<?xml version="1.0"?>
-<!DOCTYPE Configure PUBLIC "-//Jetty//Configure//EN" "http://www.eclipse.org/jetty/configure.dtd">
+    WORKER_CONFIG = 'WEB-INF/webserver-worker.xml'
 
-<Configure id="Server" class="org.eclipse.jetty.server.Server">
-</Configure>
-CONFIG
+    def add(jar, config = nil)
+      super
+      options = config && config.webserver_options || OpenStruct.new
+      # workers (of WarMain's supervisor) accept the PROXY protocol, passing the client address
+      worker_config = ! jar.files.key?("WEB-INF/webserver.xml")
+      if worker_config
+        jar.files["WEB-INF/webserver.xml"] = StringIO.new(webserver_xml(options))
+        jar.files[WORKER_CONFIG] = StringIO.new(webserver_xml(options, true))
+      end
+      props = webserver_properties(options)
+      props += "worker.config = /#{WORKER_CONFIG}\n" if worker_config
+      jar.files["WEB-INF/webserver.properties"] = StringIO.new(props)
+    end
 
-      jar.files["WEB-INF/webserver.properties"] = StringIO.new(<<-PROPS)
+    def webserver_properties(options)
+      tuning = tuning_properties(options).merge(health_properties(options))
+      <<-PROPS
 mainclass = org.eclipse.jetty.runner.Runner
 args = args0,args1,args2,args3,args4,args5,args6
-props = jetty.home
+props = #{(%w(jetty.home jetty.host jetty.port) + tuning.keys).join(',')}
 args0 = --host
 args1 = {{host}}
 args2 = --port
@@ -115,11 +147,167 @@ args4 = --config
 args5 = {{config}}
 args6 = {{warfile}}
 jetty.home = {{webroot}}
+jetty.host = {{host}}
+jetty.port = {{port}}
+#{tuning.map { |key, value| "#{key} = #{value}" }.join("\n")}
+PROPS
+    end
+
+    # Jetty configuration with a tunable thread pool and connector, the (default)
+    # values are passed as system properties (see webserver.properties) and thus
+    # might be overridden at runtime e.g. <tt>java -Djetty.threads.max=50 -jar app.war</tt>
+    def webserver_xml(options, proxy_protocol = false)
+      props = tuning_properties(options)
+      prop = lambda { |name| %{<SystemProperty name="#{name}" default="#{props[name]}"/>} }
+      handlers = '<New id="Handlers" class="org.eclipse.jetty.server.handler.HandlerCollection"/>'
+      if options.gzip
+        handlers = <<-GZIP.strip
+<New id="GzipHandler" class="#{gzip_handler_class}">
+      <Set name="minGzipSize">#{prop['jetty.gzip.min.size']}</Set>
+      <Set name="handler">#{handlers}</Set>
+    </New>
+        GZIP
+      end
+      <<-CONFIG
+<?xml version="1.0"?>
+<!DOCTYPE Configure PUBLIC "-//Jetty//Configure//EN" "http://www.eclipse.org/jetty/configure.dtd">
+
+<Configure id="Server" class="org.eclipse.jetty.server.Server">
+  <Get name="ThreadPool">
+    <Set name="minThreads" type="int">#{prop['jetty.threads.min']}</Set>
+    <Set name="maxThreads" type="int">#{prop['jetty.threads.max']}</Set>
+  </Get>
+
+  <New id="httpConfig" class="org.eclipse.jetty.server.HttpConfiguration">
+    <Set name="outputBufferSize">#{prop['jetty.output.buffer.size']}</Set>
+    <Set name="requestHeaderSize">#{prop['jetty.request.header.size']}</Set>
+  </New>
+
+  <Call name="addConnector">
+    <Arg>
+      <New class="org.eclipse.jetty.server.ServerConnector">
+        <Arg name="server"><Ref refid="Server"/></Arg>
+        <Arg name="acceptors" type="int">#{prop['jetty.http.acceptors']}</Arg>
+        <Arg name="selectors" type="int">#{prop['jetty.http.selectors']}</Arg>
+        <Arg name="factories">
+          <Array type="org.eclipse.jetty.server.ConnectionFactory">#{proxy_protocol ? %{
+            <Item>
+              <New class="org.eclipse.jetty.server.ProxyConnectionFactory"/>
+            </Item>} : ''}
+            <Item>
+              <New class="org.eclipse.jetty.server.HttpConnectionFactory">
+                <Arg name="config"><Ref refid="httpConfig"/></Arg>
+              </New>
+            </Item>
+          </Array>
+        </Arg>
+        <Set name="host"><SystemProperty name="jetty.host"/></Set>
+        <Set name="port"><SystemProperty name="jetty.port" default="8080"/></Set>
+        <Set name="idleTimeout">#{prop['jetty.http.idleTimeout']}</Set>
+      </New>
+    </Arg>
+  </Call>
+
+  <Set name="handler">
+    #{handlers}
+  </Set>
+</Configure>
+CONFIG
+    end
+
+    private
+
+    def tuning_properties(options)
+      props = {}
+      TUNING_PROPERTIES.each do |name, (option, default)|
+        next if option == :gzip_min_size && ! options.gzip
+        value = options.send(option)
+        props[name] = value.nil? ? default : value
+      end
+      props
+    end
+
+    # GzipHandler moved from jetty-server to jetty-servlets in 9.0 and back in 9.3
+    def gzip_handler_class
+      version = @artifact.version.split('.')[0, 2].map(&:to_i)
+      if (version <=> [9, 3]) >= 0
+        'org.eclipse.jetty.server.handler.gzip.GzipHandler'
+      elsif (version <=> [9, 0]) >= 0
+        'org.eclipse.jetty.servlets.gzip.GzipHandler'
+      else
+        'org.eclipse.jetty.server.handler.GzipHandler'
+      end
+    end
+  end
+
+  # Jetty (10) executing requests on virtual threads when running on Java 21+,
+  # otherwise (older JVMs) the platform thread pool is used.
+  class JettyVirtualServer < JettyServer
+    VIRTUAL_THREADS_CONFIG = 'WEB-INF/webserver-virtual.xml'
+
+    def initialize
+      @artifact = Artifact.new(ENV["MAVEN_REPO"] || "http://repo2.maven.org/maven2",
+                               "org.eclipse.jetty", "jetty-runner",
+                               ENV["WEBSERVER_VERSION"] || "10.0.20")
+    end
+
+    def add(jar, config = nil)
+      super
+      jar.files[VIRTUAL_THREADS_CONFIG] = StringIO.new(<<-CONFIG)
+<?xml version="1.0"?>
+<!DOCTYPE Configure PUBLIC "-//Jetty//Configure//EN" "http://www.eclipse.org/jetty/configure.dtd">
+
+<Configure id="Server" class="org.eclipse.jetty.server.Server">
+  <Get name="ThreadPool">
+    <Set name="virtualThreadsExecutor">
+      <Call class="java.util.concurrent.Executors" name="newVirtualThreadPerTaskExecutor"/>
+    </Set>
+  </Get>
+</Configure>
+CONFIG
+    end
+
+    # WarMain adds the virtual threads configuration (on a JVM supporting them),
+    # Jetty 10 itself needs Java 11+ (checked by WarMain before launching)
+    def webserver_properties(options)
+      super + "virtual_threads.config = /#{VIRTUAL_THREADS_CONFIG}\njava_version = 11\n"
+    end
+  end
+
+  # Tomcat (9) embedded, launched using Heroku's webapp-runner. Workers (of WarMain's
+  # supervisor) see the supervisor's (loopback) address as the client address, as
+  # Tomcat does not accept the PROXY protocol.
+  class TomcatServer < WebServer
+    def initialize
+      @artifact = Artifact.new(ENV["MAVEN_REPO"] || "http://repo2.maven.org/maven2",
+                               "com.heroku", "webapp-runner",
+                               ENV["WEBSERVER_VERSION"] || "9.0.41.0")
+    end
+
+    def add(jar, config = nil)
+      super
+      health = health_properties(config && config.webserver_options)
+      props = <<-PROPS
+mainclass = webapp.runner.launch.Main
+args = args0,args1,args2,args3,args4,args5
+args0 = -Aaddress={{host}}
+args1 = --port
+args2 = {{port}}
+args3 = --temp-directory
+args4 = {{webroot}}
+args5 = {{warfile}}
 PROPS
+      unless health.empty?
+        props << "props = #{health.keys.join(',')}\n"
+        health.each { |key, value| props << "#{key} = #{value}\n" }
+      end
+      jar.files["WEB-INF/webserver.properties"] = StringIO.new(props)
     end
   end
 
   WEB_SERVERS = Hash.new { |hash,_| hash['jetty'] }
   WEB_SERVERS['jetty'] = JettyServer.new
+  WEB_SERVERS['jetty-virtual'] = JettyVirtualServer.new
+  WEB_SERVERS['tomcat'] = TomcatServer.new
 
 end
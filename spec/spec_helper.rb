@@ -155,7 +155,7 @@ module ExampleGroupHelpers
     before :each do
       webserver = double('server').as_null_object
       webserver.stub(:main_class).and_return 'WarMain.class'
-      webserver.stub(:add) do |jar|
+      webserver.stub(:add) do |jar, *|
         jar.files['WEB-INF/webserver.jar'] = StringIO.new
       end
       Warbler::WEB_SERVERS['test'] = webserver
@@ -138,6 +138,26 @@ describe Warbler::Jar, "with Bundler" do
       contents.should =~ Regexp.new(Regexp.quote("ENV['BUNDLE_GEMFILE'] ||= $servlet_context.getRealPath('/WEB-INF/Gemfile')"))
     end
 
+    it "packages a standalone bundler/setup.rb with a frozen load path" do
+      use_config do |config|
+        config.frozen_load_path = true
+      end
+      jar.apply(config)
+      contents = jar.contents('WEB-INF/.bundle/standalone/bundler/setup.rb')
+      contents.should =~ %r{"#\{gem_home\}/gems/rspec-core-[^/]+/lib",}
+      contents.should =~ /%w\(.*rspec-core-\S+.*\)\.each do \|full_name\|/
+      contents = jar.contents('META-INF/init.rb')
+      contents.should include("File.expand_path('.bundle/standalone', File.dirname(ENV['BUNDLE_GEMFILE']))")
+      contents.should include("require 'bundler/setup'")
+      contents.should_not include('$LOADED_FEATURES')
+    end
+
+    it "does not write a frozen load path by default" do
+      jar.apply(config)
+      jar.contents('META-INF/init.rb').should_not =~ /standalone/
+      jar.files.keys.grep(/standalone/).should be_empty
+    end
+
     it "uses ENV['BUNDLE_GEMFILE'] if set" do
       mv "Gemfile", "Special-Gemfile"
       ENV['BUNDLE_GEMFILE'] = "Special-Gemfile"
@@ -162,6 +182,19 @@ describe Warbler::Jar, "with Bundler" do
         contents = jar.contents('META-INF/init.rb')
         contents.should =~ /ENV\['BUNDLE_GEMFILE'\] = File.expand_path(.*, __FILE__)/
       end
+
+      it "puts :git gems on the standalone load path" do
+        File.open("Gemfile", "w") {|f| f << "gem 'tester', :git => '#{@gem_dir}'\n"}
+        bundle_install '--local'
+        use_config do |config|
+          config.frozen_load_path = true
+        end
+        jar.apply(config)
+        setup = jar.files.keys.grep(%r{(^|/)\.bundle/standalone/bundler/setup\.rb$}).first
+        setup.should == jar.send(:apply_pathmaps, config, '.bundle/standalone/bundler/setup.rb', :application)
+        contents = jar.contents(setup)
+        contents.should =~ %r{"#\{gem_home\}/bundler/gems/tester[^/]*/lib",}
+      end
     end
 
     it "adds BUNDLE_GEMFILE to init.rb" do
@@ -51,6 +51,22 @@ describe Warbler::Jar do
       file_list(%r{^JarMain\.class$}).should_not be_empty
     end
 
+    it "adds nested launcher classes along with JarMain" do
+      begin
+        Warbler::ZipSupport.create('launcher.jar') do |zipfile|
+          %w(JarMain.class JarMain$EntryExtractor.class WarMain.class).each do |name|
+            zipfile.get_output_stream(name) { |f| f << name }
+          end
+        end
+        jar.add_launcher_class('JarMain', 'launcher.jar')
+        file_list(%r{^JarMain\.class$}).should_not be_empty
+        file_list(%r{^JarMain\$EntryExtractor\.class$}).should_not be_empty
+        file_list(%r{^WarMain\.class$}).should be_empty
+      ensure
+        rm_f 'launcher.jar'
+      end
+    end
+
     it "adds an init.rb" do
       jar.apply(config)
       file_list(%r{^META-INF/init.rb$}).should_not be_empty
@@ -129,6 +145,224 @@ describe Warbler::Jar do
       end
     end
 
+    it "adds launcher properties with jvm options" do
+      use_config do |config|
+        config.jvm_options = [ '-Xmx1g', '-XX:+UseG1GC' ]
+        config.class_data_sharing = true
+      end
+      jar.apply(config)
+      props = jar.files['META-INF/warbler.properties'].read
+      props.should include("jvm.options=-Xmx1g\\n-XX\\:+UseG1GC\n")
+      props.should include("jvm.cds=true\n")
+    end
+
+    it "adds jruby properties to launcher properties" do
+      use_config do |config|
+        config.jruby_properties = { 'compile.mode' => 'JIT', :'jruby.jit.threshold' => 10 }
+      end
+      jar.apply(config)
+      props = jar.files['META-INF/warbler.properties'].read
+      props.should include("jruby.compile.mode=JIT\n")
+      props.should include("jruby.jit.threshold=10\n")
+    end
+
+    it "does not add launcher properties by default" do
+      jar.apply(config)
+      jar.files['META-INF/warbler.properties'].should be_nil
+    end
+
+    it "stores jar files uncompressed when store_jars is set" do
+      begin
+        Warbler::ZipSupport.create('lib.jar') do |zipfile|
+          zipfile.get_output_stream('lib.txt') { |f| f << 'lib' * 1000 }
+        end
+        touch "foo.txt"
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.store_jars = true
+        end
+
+        jar.files["lib.jar"] = "lib.jar"
+        jar.files["foo.txt"] = "foo.txt"
+
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open('sample.jar') do |zf|
+          zf.get_entry('lib.jar').compression_method.should == Zip::Entry::STORED
+          zf.get_entry('foo.txt').compression_method.should == Zip::Entry::DEFLATED
+        end
+      ensure
+        rm_f ['lib.jar', 'foo.txt', 'sample.jar']
+      end
+    end
+
+    it "opens an entry in a jar as an IO" do
+      begin
+        Warbler::ZipSupport.create('lib.jar') do |zipfile|
+          zipfile.get_output_stream('lib.txt') { |f| f << 'lib' * 10000 }
+        end
+        jar.open_entry_in_jar('lib.jar', 'lib.txt') { |io| io.read(3).should == 'lib' }
+        jar.open_entry_in_jar('lib.jar', 'lib.txt') { |io| io.read.size.should == 30000 }
+        jar.open_entry_in_jar('lib.jar', 'lib.txt').should be_a(StringIO) # read up-front, nothing left open
+        jar.entry_in_jar('lib.jar', 'lib.txt').read.size.should == 30000
+      ensure
+        rm_f 'lib.jar'
+      end
+    end
+
+    it "opens entries in more jars than it keeps open" do
+      begin
+        jars = (0...20).map do |i|
+          Warbler::ZipSupport.create("lib#{i}.jar") do |zipfile|
+            zipfile.get_output_stream('lib.txt') { |f| f << "lib#{i}" * 10000 }
+          end
+          "lib#{i}.jar"
+        end
+        jar.open_entry_in_jar(jars.first, 'lib.txt') do |first|
+          first.read(4).should == 'lib0'
+          jars.each_with_index do |lib, i|
+            jar.open_entry_in_jar(lib, 'lib.txt') { |io| io.read.should == "lib#{i}" * 10000 }
+          end
+          first.read.size.should == 39996 # still readable once evicted
+        end
+        jar.open_entry_in_jar(jars.first, 'lib.txt') { |io| io.read(4).should == 'lib0' }
+      ensure
+        rm_f (0...20).map { |i| "lib#{i}.jar" }
+      end
+    end
+
+    it "resolves compression levels from the compression policy" do
+      use_config do |config|
+        config.store_jars = true
+        config.compression = { Warbler::Config::COMPRESSED_ENTRIES => :stored, %r{^public/} => 9 }
+      end
+
+      jar.files["lib/foo.jar"] = "foo.jar"
+      jar.files["public/logo.png"] = "logo.png"
+      jar.files["public/index.html"] = "index.html"
+      jar.files["public/images"] = nil
+      jar.files["app/foo.rb"] = "foo.rb"
+
+      levels = jar.send(:archive_options, config)['levels']
+      levels['lib/foo.jar'].should == 0
+      levels['public/logo.png'].should == 0
+      levels['public/index.html'].should == 9
+      levels.should_not have_key('public/images')
+      levels.should_not have_key('app/foo.rb')
+    end
+
+    it "rejects invalid compression levels" do
+      use_config do |config|
+        config.compression = { '*.txt' => 10 }
+      end
+      jar.files["foo.txt"] = "foo.txt"
+      lambda { jar.send(:archive_options, config) }.should raise_error(ArgumentError)
+    end
+
+    it "compresses entries concurrently when archive_threads is set" do
+      begin
+        mkdir_p "parallel"
+        10.times { |i| File.open("parallel/foo#{i}.txt", "w") { |f| f << "foo#{i}" * 100 } }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.archive_threads = 4
+        end
+
+        10.times { |i| jar.files["parallel/foo#{i}.txt"] = "parallel/foo#{i}.txt" }
+        jar.files["parallel"] = nil
+        jar.files["bar.txt"] = StringIO.new("bar")
+
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open('sample.jar') do |zf|
+          zf.entries.map(&:name).should == [ 'bar.txt', 'parallel/' ] + (0...10).map { |i| "parallel/foo#{i}.txt" }
+          zf.get_entry('parallel/foo3.txt').compression_method.should == Zip::Entry::DEFLATED
+          zf.read('parallel/foo3.txt').should == "foo3" * 100
+          zf.read('bar.txt').should == "bar"
+        end
+      ensure
+        rm_rf ['parallel', 'sample.jar']
+      end
+    end
+
+    it "reuses the previous archive when incremental_archive is set" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" * 100 }
+        File.open("bar.txt", "w") { |f| f << "bar" * 100 }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.incremental_archive = true
+        end
+
+        jar.files["foo.txt"] = "foo.txt"
+        jar.files["bar.txt"] = "bar.txt"
+
+        silence { jar.create(config) }
+        File.open("bar.txt", "w") { |f| f << "baz" * 100 }
+        silence { jar.create(config) }
+
+        File.exist?('sample.jar.previous').should be false
+        Warbler::ZipSupport.open('sample.jar') do |zf|
+          zf.read('foo.txt').should == "foo" * 100
+          zf.read('bar.txt').should == "baz" * 100
+        end
+      ensure
+        rm_f ['foo.txt', 'bar.txt', 'sample.jar']
+      end
+    end
+
+    it "applies a changed compression policy to reused entries" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" * 100 }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.incremental_archive = true
+          config.compression = { '*.txt' => :stored }
+        end
+
+        jar.files["foo.txt"] = "foo.txt"
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open('sample.jar') do |zf|
+          zf.get_entry('foo.txt').compression_method.should == Zip::Entry::STORED
+        end
+
+        config.compression = { '*.txt' => 9 }
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open('sample.jar') do |zf|
+          zf.get_entry('foo.txt').compression_method.should == Zip::Entry::DEFLATED
+          zf.read('foo.txt').should == "foo" * 100
+        end
+      ensure
+        rm_f ['foo.txt', 'sample.jar']
+      end
+    end
+
+    it "restores the previous archive when an incremental create fails" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" * 100 }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.incremental_archive = true
+        end
+
+        jar.files["foo.txt"] = "foo.txt"
+        silence { jar.create(config) }
+
+        jar.should_receive(:create_jar).and_raise IOError.new('disk full')
+        lambda { silence { jar.create(config) } }.should raise_error(IOError)
+
+        File.exist?('sample.jar.previous').should be false
+        Warbler::ZipSupport.open('sample.jar') do |zf|
+          zf.read('foo.txt').should == "foo" * 100
+        end
+      ensure
+        rm_f ['foo.txt', 'sample.jar', 'sample.jar.previous']
+      end
+    end
+
     context "with a .gemspec" do
       it "detects a Gemspec trait" do
         config.traits.should include(Warbler::Traits::Gemspec)
@@ -336,6 +570,20 @@ describe Warbler::Jar do
       file_list(%r{^index\.html}).should_not be_empty
     end
 
+    it "walks application directories as the glob it replaces" do
+      pending("needs JRuby to work") unless jar.respond_to?(:find_files)
+      mkdir_p "tmp/walk/nested/deeper"
+      mkdir_p "tmp/walk/.hidden"
+      touch "tmp/walk/top.rb"
+      touch "tmp/walk/.dotfile"
+      touch "tmp/walk/.hidden/skipped.rb"
+      touch "tmp/walk/nested/inner.rb"
+      touch "tmp/walk/nested/deeper/leaf.rb"
+      ln_s "nested", "tmp/walk/linked"
+      globbed = FileList["tmp/walk/**/*/**/*", "tmp/walk/*"].map { |f| f.sub(%r{^tmp/walk/}, '') }
+      jar.find_files(['tmp/walk'])['tmp/walk'].sort.should == globbed.uniq.sort
+    end
+
     it "collects gem files" do
       use_config do |config|
         config.gems << 'rake'
@@ -345,6 +593,54 @@ describe Warbler::Jar do
       file_list(%r{WEB-INF/gems/specifications/rake.*\.gemspec}).should_not be_empty
     end
 
+    it "indexes gem executables for a runnable war" do
+      use_config do |config|
+        config.gems << 'rake'
+        config.features << 'runnable'
+      end
+      jar.apply(config)
+      props = jar.files['META-INF/warbler.properties'].read
+      props.should =~ %r{^executable.rake=WEB-INF/gems/gems/rake-[^/]+/(bin|exe)/rake$}
+    end
+
+    context "with several versions of a gem" do
+      let(:specs) do
+        %w(1.0 2.0).map do |version|
+          Gem::Specification.new do |spec|
+            spec.name = 'sample_tool'; spec.version = version
+            spec.bindir = 'bin'; spec.executables = [ 'tool' ]
+          end
+        end
+      end
+
+      def tool_entry(spec)
+        entry = jar.send(:apply_pathmaps, config, File.join(spec.full_name, 'bin', 'tool'), :gems)
+        jar.files[entry] = "#{spec.full_name}/bin/tool"
+        entry
+      end
+
+      it "indexes the executable of the highest version" do
+        entries = specs.map { |spec| tool_entry(spec) }
+        specs.each { |spec| jar.send(:add_gem_executables, config, spec) }
+        jar.send(:gem_executables)['tool'].last.should == entries.last
+      end
+
+      it "indexes the executable of the activated version" do
+        entries = specs.map { |spec| tool_entry(spec) }
+        Gem.stub(:loaded_specs).and_return('sample_tool' => specs.first)
+        specs.reverse.each { |spec| jar.send(:add_gem_executables, config, spec) }
+        jar.send(:gem_executables)['tool'].last.should == entries.first
+      end
+    end
+
+    it "does not index gem executables unless runnable" do
+      use_config do |config|
+        config.gems << 'rake'
+      end
+      jar.apply(config)
+      jar.files['META-INF/warbler.properties'].should be_nil
+    end
+
     it "collects gem files with dependencies" do
       use_config do |config|
         config.gems << 'virtus'
@@ -562,6 +858,22 @@ describe Warbler::Jar do
       file_list(%r{robots.txt}).should be_empty
     end
 
+    it "finds nested application files but skips hidden and backup files" do
+      begin
+        mkdir_p "lib/deep/er/.hidden"
+        touch "lib/deep/er/file.rb"
+        touch "lib/deep/er/.hidden/file.rb"
+        touch "lib/deep/.secret"
+        touch "lib/deep/file.rb~"
+        jar.apply(config)
+        file_list(%r{^WEB-INF/lib/deep/er/file\.rb$}).should_not be_empty
+        file_list(%r{^WEB-INF/lib/deep/er$}).should_not be_empty
+        file_list(%r{\.hidden|\.secret|file\.rb~}).should be_empty
+      ensure
+        rm_rf "lib/deep"
+      end
+    end
+
     it "reads configuration from #{Warbler::Config::FILE}" do
       mkdir_p "config"
       File.open(Warbler::Config::FILE, "w") do |dest|
@@ -702,6 +1014,29 @@ describe Warbler::Jar do
         file_list(%r{^WarMain\.class$}).should_not be_empty
         file_list(%r{^JarMain\.class$}).should_not be_empty
       end
+
+      it "adds the health check listener (ahead of the Rack listener) when configured" do
+        use_config do |config|
+          config.webserver = "test"
+          config.features << "executable"
+          config.webserver_options.health_path = '/health'
+        end
+        jar.apply(config)
+        file_list(%r{^WEB-INF/classes/WarblerHealth\.class$}).should_not be_empty
+        web_xml = jar.files["WEB-INF/web.xml"].read
+        web_xml.index('<listener-class>WarblerHealth</listener-class>').should <
+          web_xml.index('<listener-class>org.jruby.rack')
+      end
+
+      it "does not add the health check listener by default" do
+        use_config do |config|
+          config.webserver = "test"
+          config.features << "executable"
+        end
+        jar.apply(config)
+        file_list(%r{WarblerHealth}).should be_empty
+        jar.files["WEB-INF/web.xml"].read.should_not include('WarblerHealth')
+      end
     end
 
     context "with the runnable feature" do
@@ -715,6 +1050,37 @@ describe Warbler::Jar do
         file_list(%r{^JarMain\.class$}).should_not be_empty
       end
 
+      it "indexes WEB-INF directories when lazy_extract is set" do
+        use_config do |config|
+          config.jar_name = 'lazy'
+          config.features << "runnable"
+          config.lazy_extract = true
+        end
+        jar.apply(config)
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open('lazy.war') do |zf|
+          zf.read('META-INF/warbler.properties').should include("lazy_extract=true\n")
+          index = zf.read('WEB-INF/.jrubydir').split("\n")
+          index.first.should == '.'
+          index.should include('app', 'config', 'web.xml')
+          zf.read('WEB-INF/app/.jrubydir').split("\n").should == [ '.', 'controllers', 'helpers' ]
+          zf.read('WEB-INF/app/controllers/.jrubydir').split("\n").should == [ '.', 'application.rb' ]
+          zf.find_entry('.jrubydir').should be nil
+        end
+      end
+
+      it "does not index directories by default" do
+        use_config do |config|
+          config.jar_name = 'eager'
+          config.features << "runnable"
+        end
+        jar.apply(config)
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open('eager.war') do |zf|
+          zf.find_entry('WEB-INF/.jrubydir').should be nil
+        end
+      end
+
     end
 
     context "in a Rails application" do
@@ -39,3 +39,129 @@ describe Warbler::WebServer::Artifact do
   end
 
 end
+
+describe Warbler::JettyServer do
+
+  let(:server) { Warbler::JettyServer.new }
+  let(:jar) { Warbler::Jar.new }
+  let(:config) { Warbler::Config.new }
+
+  before do
+    server.instance_variable_get(:@artifact).stub(:local_path).and_return 'jetty-runner.jar'
+  end
+
+  it "generates a webserver.xml with a tunable thread pool and connector" do
+    config.webserver_options.max_threads = 50
+    server.add(jar, config)
+    xml = jar.files['WEB-INF/webserver.xml'].read
+    xml.should include('<SystemProperty name="jetty.threads.max" default="50"/>')
+    xml.should include('<SystemProperty name="jetty.threads.min" default="8"/>')
+    xml.should include('<SystemProperty name="jetty.port" default="8080"/>')
+    xml.should_not include('GzipHandler')
+  end
+
+  it "wraps handlers with a gzip handler when configured" do
+    config.webserver_options.gzip = true
+    server.add(jar, config)
+    xml = jar.files['WEB-INF/webserver.xml'].read
+    xml.should include('class="org.eclipse.jetty.servlets.gzip.GzipHandler"')
+    xml.should include('<SystemProperty name="jetty.gzip.min.size" default="256"/>')
+  end
+
+  it "sets tuning values as system properties in webserver.properties" do
+    config.webserver_options.idle_timeout = 10000
+    server.add(jar, config)
+    props = jar.files['WEB-INF/webserver.properties'].read
+    props.should =~ /^props = jetty.home,jetty.host,jetty.port,jetty.threads.min,/
+    props.should include("jetty.http.idleTimeout = 10000\n")
+    props.should include("jetty.port = {{port}}\n")
+  end
+
+  it "sets the health check path as a system property when configured" do
+    config.webserver_options.health_path = '/health'
+    server.add(jar, config)
+    props = jar.files['WEB-INF/webserver.properties'].read
+    props.should =~ /^props = .*,warbler.health.path$/
+    props.should include("warbler.health.path = /health\n")
+  end
+
+  it "keeps an existing webserver.xml" do
+    jar.files['WEB-INF/webserver.xml'] = 'config/webserver.xml'
+    server.add(jar, config)
+    jar.files['WEB-INF/webserver.xml'].should == 'config/webserver.xml'
+    jar.files['WEB-INF/webserver-worker.xml'].should be_nil
+    jar.files['WEB-INF/webserver.properties'].read.should_not include('worker.config')
+  end
+
+  it "generates a worker configuration accepting the PROXY protocol" do
+    server.add(jar, config)
+    jar.files['WEB-INF/webserver.xml'].read.should_not include('ProxyConnectionFactory')
+    xml = jar.files['WEB-INF/webserver-worker.xml'].read
+    xml.index('org.eclipse.jetty.server.ProxyConnectionFactory').should <
+      xml.index('org.eclipse.jetty.server.HttpConnectionFactory')
+    props = jar.files['WEB-INF/webserver.properties'].read
+    props.should include("worker.config = /WEB-INF/webserver-worker.xml\n")
+  end
+
+end
+
+describe Warbler::JettyVirtualServer do
+
+  let(:server) { Warbler::WEB_SERVERS['jetty-virtual'] }
+  let(:jar) { Warbler::Jar.new }
+
+  before do
+    server.instance_variable_get(:@artifact).stub(:local_path).and_return 'jetty-runner.jar'
+  end
+
+  it "adds a virtual threads configuration for WarMain" do
+    server.add(jar, Warbler::Config.new)
+    jar.files['WEB-INF/webserver-virtual.xml'].read.should include('newVirtualThreadPerTaskExecutor')
+    props = jar.files['WEB-INF/webserver.properties'].read
+    props.should include("virtual_threads.config = /WEB-INF/webserver-virtual.xml\n")
+    props.should include("mainclass = org.eclipse.jetty.runner.Runner\n")
+    props.should include("java_version = 11\n")
+  end
+
+  it "uses the gzip handler class of Jetty 10" do
+    config = Warbler::Config.new
+    config.webserver_options.gzip = true
+    server.add(jar, config)
+    jar.files['WEB-INF/webserver.xml'].read.should include('org.eclipse.jetty.server.handler.gzip.GzipHandler')
+  end
+
+end
+
+describe Warbler::TomcatServer do
+
+  let(:server) { Warbler::WEB_SERVERS['tomcat'] }
+  let(:jar) { Warbler::Jar.new }
+
+  before do
+    server.instance_variable_get(:@artifact).stub(:local_path).and_return 'webapp-runner.jar'
+  end
+
+  it "adds webapp-runner with a webserver.properties launching it" do
+    server.add(jar, Warbler::Config.new)
+    jar.files['WEB-INF/webserver.jar'].should == 'webapp-runner.jar'
+    props = jar.files['WEB-INF/webserver.properties'].read
+    props.should include("mainclass = webapp.runner.launch.Main\n")
+    props.should include("args0 = -Aaddress={{host}}\n")
+    props.should include("args5 = {{warfile}}\n")
+    jar.files['WEB-INF/webserver.xml'].should be_nil
+  end
+
+  it "sets the health check path as a system property when configured" do
+    config = Warbler::Config.new
+    config.webserver_options.health_path = '/health'
+    server.add(jar, config)
+    props = jar.files['WEB-INF/webserver.properties'].read
+    props.should include("props = warbler.health.path\n")
+    props.should include("warbler.health.path = /health\n")
+  end
+
+  it "resolves the webapp-runner artifact" do
+    server.instance_variable_get(:@artifact).path_fragment.should =~ %r{^com/heroku/webapp-runner/}
+  end
+
+end
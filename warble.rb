@@ -45,6 +45,10 @@ Warbler::Config.new do |config|
   # Defaults to ["development", "test", "assets"].
   # config.bundle_without = []
 
+  # Resolve the Bundler load path when building the archive (packaged as a
+  # standalone bundler/setup.rb), so that booting the application skips Bundler.setup.
+  # config.frozen_load_path = true
+
   # Other gems to be included. If you don't use Bundler or a gemspec
   # file, you need to tell Warbler which gems your application needs
   # so that they can be packaged in the archive.
@@ -122,13 +126,57 @@ Warbler::Config.new do |config|
   # included in the archive.
   # config.move_jars_to_webinf_lib = false
 
+  # If set to true, jar files are stored uncompressed in the archive so that the
+  # launcher can copy them (or load them in place) without inflating. The archive
+  # gets somewhat larger in exchange for a faster start-up.
+  # config.store_jars = false
+
+  # Number of threads compressing archive entries concurrently, 0 to use all
+  # available processors. Speeds up creating large archives on multi-core hosts.
+  # config.archive_threads = 1
+
+  # Compression policy, entry patterns (globs or regexps) to compression levels
+  # (:stored or 0-9). Storing already compressed content saves build time and
+  # the application server from inflating it.
+  # config.compression = { Warbler::Config::COMPRESSED_ENTRIES => :stored, '*' => 6 }
+
+  # If set to true, rebuilding the archive reuses the compressed contents of
+  # entries that did not change since the previous build.
+  # config.incremental_archive = false
+
+  # JVM options for a runnable jar/war, the launcher re-executes itself in a child
+  # JVM with these (options given on the command line take precedence).
+  # config.jvm_options = ["-Xmx1g", "-XX:+UseG1GC"]
+
+  # When set to true, a runnable jar/war relaunches using an application class data
+  # sharing archive, created by the first run (needs Java 13+ and the extraction cache
+  # to be set at runtime e.g. java -Dwarbler.extract_cache=/var/cache/app -jar app.war).
+  # config.class_data_sharing = false
+
+  # When set to true, running an executable from a runnable war (java -jar app.war -S rake)
+  # only extracts the jars and loads the application and gems from the war as needed.
+  # config.lazy_extract = false
+
+  # JRuby options (e.g. compile mode, JIT thresholds, invokedynamic) a runnable
+  # jar/war applies before JRuby boots, unless set using -D on the command line.
+  # config.jruby_properties = { 'compile.mode' => 'JIT', 'compile.invokedynamic' => true }
+
   # === War files only below here ===
 
   # Embedded webserver to use with the 'executable' feature. Currently supported
   # webservers are:
   # - *jetty* - Embedded Jetty from Eclipse
+  # - *jetty-virtual* - Embedded Jetty (10) using virtual threads on Java 21+
+  # - *tomcat* - Embedded Tomcat (using webapp-runner)
   # config.webserver = 'jetty'
 
+  # Tuning of the embedded webserver (see Warbler::Config#webserver_options), values
+  # can also be overridden at runtime e.g. java -Djetty.threads.max=50 -jar app.war
+  # config.webserver_options.max_threads = 100
+  # config.webserver_options.idle_timeout = 30000
+  # config.webserver_options.gzip = true
+  # config.webserver_options.health_path = '/health'
+
   # Path to the pre-bundled gem directory inside the war file. Default
   # is 'WEB-INF/gems'. Specify path if gems are already bundled
   # before running Warbler. This also sets 'gem.path' inside web.xml.